@@ -0,0 +1,53 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of one ChatServer.broadcast to every online user: encoding, the lock-free membership
+// snapshot, and one enqueue and drain per recipient. Socket writes are not included.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int clients;
+
+    private ChatServer.ClientHandler[] users;
+
+    @Setup
+    public void join() {
+        users = Users.join("user", clients);
+    }
+
+    @TearDown
+    public void leave() {
+        Users.leave(users);
+    }
+
+    // A chat line from one user, fanned out to everyone else
+    @Benchmark
+    public void chatLine() {
+        ChatServer.broadcast("[user0] the quarterly numbers are in the shared folder", users[0]);
+    }
+
+    // A server notice such as a join, leave or file-transfer message, sent to everyone
+    @Benchmark
+    public void serverNotice() {
+        ChatServer.broadcast("[File transfer complete from user1 to user2 report.csv (120 KB)]", null);
+    }
+}
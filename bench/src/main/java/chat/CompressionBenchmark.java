@@ -0,0 +1,119 @@
+package chat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One FILE_MB file over the chunked protocol per call, with and without deflate. Log lines compress
+// well; random bytes do not, and show what the probe costs when every chunk goes out as it is. A
+// linkMbit cap (through the client's RateLimiter, on the bytes that cross the connection) stands in
+// for a slow network, where compression pays; uncapped loopback shows its cost in CPU.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+    private static final long FILE_MB = 32;
+
+    @Param({"logs", "random"})
+    public String content;
+
+    @Param({"off", "deflate"})
+    public String compression;
+
+    @Param({"0", "100"})
+    public int linkMbit;
+
+    private File dir;
+    private File source;
+    private File target;
+
+    @Setup
+    public void createFile() throws IOException {
+        dir = Files.createTempDirectory("chat-bench").toFile();
+        long size = FILE_MB * 1024 * 1024;
+        source = content.equals("logs") ? createLogFile(dir, size) : TransferBenchmark.createSourceFile(dir, size);
+        target = new File(dir, "target.bin");
+        ChunkedTransfer.digestOf(source).join();
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void fileCopy() throws IOException, InterruptedException {
+        File stateFile = new File(target.getPath() + ".state");
+        stateFile.delete();
+        // The link is one direction of one connection, so only the sender holds to it
+        TransferManager.RateLimiter link = new TransferManager.RateLimiter(linkMbit * 1_000_000L / 8);
+        ChunkedTransfer.Meter meter = (length, wireLength) -> link.acquire(wireLength);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            IOException[] receiveError = new IOException[1];
+            Thread receiver = new Thread(() -> {
+                try {
+                    ChunkedTransfer.receive(() -> ChatClient.openDataChannel(address), target, stateFile, 1, ChunkedTransfer.Meter.NONE);
+                } catch (IOException e) {
+                    receiveError[0] = e;
+                }
+            });
+            receiver.start();
+            try (ChunkedTransfer.Acceptor acceptor = new ChunkedTransfer.PortAcceptor(server)) {
+                ChunkedTransfer.serveSession(acceptor, source, 0, null, compression.equals("deflate"), 15000, meter, () -> { });
+            }
+            receiver.join();
+            if (receiveError[0] != null) throw receiveError[0];
+        }
+    }
+
+    // Server-log-like lines: timestamps, a few levels and paths, and numbers that vary, from a fixed seed
+    private static File createLogFile(File dir, long size) throws IOException {
+        File file = new File(dir, "source-" + size + ".log");
+        String[] levels = {"INFO", "INFO", "INFO", "WARN", "DEBUG"};
+        String[] paths = {"/api/v1/items", "/api/v1/users", "/static/app.js", "/login", "/api/v1/search"};
+        Random random = new Random(42);
+        long written = 0;
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; written < size; i++) {
+                String line = String.format("2026-01-01T%02d:%02d:%02d.%03d %-5s [worker-%d] GET %s/%d status=%d took=%dms%n",
+                        (i / 3600000) % 24, (i / 60000) % 60, (i / 1000) % 60, i % 1000, levels[random.nextInt(levels.length)],
+                        random.nextInt(16), paths[random.nextInt(paths.length)], random.nextInt(100000),
+                        random.nextInt(10) == 0 ? 404 : 200, random.nextInt(900));
+                line = line.substring(0, (int) Math.min(line.length(), size - written));
+                out.write(line);
+                written += line.length();
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,63 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One file over loopback per call, through each of the client's data paths (see TransferBenchmark):
+// the old 4 KB stream loop, transferTo/transferFrom, and the chunked protocol over one and four streams
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class FileCopyBenchmark {
+    private static final long MB = 1024 * 1024;
+
+    @Param({"1", "64", "256"})
+    public long sizeMB;
+
+    @Param({"LOOP", "ZERO_COPY", "CHUNKED", "PARALLEL"})
+    public String path;
+
+    private File dir;
+    private File source;
+    private File target;
+
+    @Setup
+    public void createFile() throws IOException {
+        dir = Files.createTempDirectory("chat-bench").toFile();
+        source = TransferBenchmark.createSourceFile(dir, sizeMB * MB);
+        target = new File(dir, "target.bin");
+        ChunkedTransfer.digestOf(source).join(); // the client hashes while waiting for /acceptfile
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public double copy() throws IOException {
+        return TransferBenchmark.measure(source, target, TransferBenchmark.Path.valueOf(path));
+    }
+}
@@ -0,0 +1,81 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Turning what a client sent into a Command, as ClientHandler.run and NioConnection do for every
+// message: a text line through parseLine, or a binary frame decoded in place from a read buffer
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParseBenchmark {
+    private static final String CHAT = "the quarterly numbers are in the shared folder";
+    private static final String SENDFILE = "/sendfile bob #id=7 report.csv 120 KB";
+    private static final String FILEPORT = "/fileport bob #id=7:streams=4 40123";
+
+    private ByteBuffer chatFrame;
+    private ByteBuffer sendFileFrame;
+    private ByteBuffer directSendFileFrame;
+    private final byte[] scratch = new byte[64 * 1024];
+
+    @Setup
+    public void encode() {
+        chatFrame = ByteBuffer.wrap(ChatServer.Protocol.encode(
+                new ChatServer.Command(ChatServer.Protocol.CHAT, null, "", CHAT, null)));
+        byte[] sendFile = ChatServer.Protocol.encode(
+                new ChatServer.Command(ChatServer.Protocol.SENDFILE, "bob", "#id=7", "report.csv", "120 KB"));
+        sendFileFrame = ByteBuffer.wrap(sendFile);
+        // The NIO server reads into a direct buffer, so field bytes are copied through scratch
+        directSendFileFrame = ByteBuffer.allocateDirect(sendFile.length).put(sendFile);
+    }
+
+    @Benchmark
+    public Object chatLine() {
+        return ChatServer.Protocol.parseLine(CHAT);
+    }
+
+    @Benchmark
+    public Object sendFileLine() {
+        return ChatServer.Protocol.parseLine(SENDFILE);
+    }
+
+    @Benchmark
+    public Object filePortLine() {
+        return ChatServer.Protocol.parseLine(FILEPORT);
+    }
+
+    @Benchmark
+    public Object chatFrame() throws Exception {
+        return decode(chatFrame);
+    }
+
+    @Benchmark
+    public Object sendFileFrame() throws Exception {
+        return decode(sendFileFrame);
+    }
+
+    @Benchmark
+    public Object sendFileFrameDirect() throws Exception {
+        return decode(directSendFileFrame);
+    }
+
+    // Skips the length prefix, as the readers do before handing the body to decode
+    private Object decode(ByteBuffer frame) throws Exception {
+        frame.limit(frame.capacity()).position(4);
+        return ChatServer.Protocol.decode(frame, frame.limit(), scratch);
+    }
+}
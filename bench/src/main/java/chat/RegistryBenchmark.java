@@ -0,0 +1,127 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// findClientByName and getUserList as /sendfile, /acceptfile, /fileport and /who use them: alone, with
+// several threads asking at once, and with a thread joining and leaving so the membership keeps changing
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RegistryBenchmark {
+    @Param({"100", "10000"})
+    public int clients;
+
+    private ChatServer.ClientHandler[] users;
+    private String[] names;
+
+    @Setup
+    public void join() {
+        users = Users.join("user", clients);
+        names = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            // Commands name the user however it was typed; the registry is case-insensitive
+            names[i] = (i % 2 == 0) ? "USER" + i : "user" + i;
+        }
+    }
+
+    @TearDown
+    public void leave() {
+        Users.leave(users);
+    }
+
+    // Walks the names so lookups do not keep hitting one cached entry
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        String next(String[] names) {
+            if (next == names.length) next = 0;
+            return names[next++];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Churner {
+        private ChatServer.ClientHandler handler;
+
+        @Setup
+        public void create() {
+            handler = new ChatServer.ClientHandler("churn-" + Thread.currentThread().getId(), java.io.OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public Object findClientByName(Cursor cursor) {
+        return ChatServer.findClientByName(cursor.next(names));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object findClientByNameShared(Cursor cursor) {
+        return ChatServer.findClientByName(cursor.next(names));
+    }
+
+    @Benchmark
+    @Group("lookupWhileChurning")
+    @GroupThreads(3)
+    public Object lookup(Cursor cursor) {
+        return ChatServer.findClientByName(cursor.next(names));
+    }
+
+    @Benchmark
+    @Group("lookupWhileChurning")
+    @GroupThreads(1)
+    public void lookupChurn(Churner churner) {
+        churn(churner);
+    }
+
+    @Benchmark
+    public String getUserList() {
+        return ChatServer.getUserList();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getUserListShared() {
+        return ChatServer.getUserList();
+    }
+
+    // Every join or leave invalidates the cached /who reply, so readers here keep rebuilding it
+    @Benchmark
+    @Group("whoWhileChurning")
+    @GroupThreads(3)
+    public String who() {
+        return ChatServer.getUserList();
+    }
+
+    @Benchmark
+    @Group("whoWhileChurning")
+    @GroupThreads(1)
+    public void whoChurn(Churner churner) {
+        churn(churner);
+    }
+
+    private static void churn(Churner churner) {
+        ChatServer.register(churner.handler);
+        ChatServer.unregister(churner.handler);
+    }
+}
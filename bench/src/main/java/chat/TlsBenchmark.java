@@ -0,0 +1,290 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What TLS costs next to plaintext. connect and chatStream talk to a ChatServer running in-process in
+// nio mode (so through its SSLEngine path); fileCopy runs the chunked file protocol over loopback.
+// Each parameter value gets its own fork, and with it a server started with or without --tls. The key
+// pair comes from keytool, into a temporary keystore that is also the truststore.
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class TlsBenchmark {
+    private static final int PORT = 12399;
+    private static final String PASSWORD = "benchmark";
+    private static final int LINES = 1000;       // per chatStream call
+    private static final int LINE_BYTES = 1024;
+    private static final long FILE_MB = 64;
+
+    private static boolean started;
+
+    // Opening a connection, logging in and quitting: plain TCP, a full TLS handshake every time, or a
+    // handshake that resumes the session the previous connection left in the client's cache
+    @State(Scope.Benchmark)
+    public static class Connections {
+        @Param({"plain", "tls-full", "tls-resumed"})
+        public String connection;
+
+        private SSLSocketFactory factory;
+        private int next;
+
+        @Setup
+        public void start() throws Exception {
+            boolean tls = !connection.equals("plain");
+            startServer(tls);
+            if (tls) factory = SSLContext.getDefault().getSocketFactory();
+        }
+    }
+
+    // One user sending LINES chat lines that the server relays to another
+    @State(Scope.Benchmark)
+    public static class Stream {
+        @Param({"plain", "tls"})
+        public String connection;
+
+        private Socket sender;
+        private Socket receiver;
+        private byte[] batch;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        @Setup
+        public void start() throws Exception {
+            boolean tls = connection.equals("tls");
+            startServer(tls);
+            SSLSocketFactory factory = tls ? SSLContext.getDefault().getSocketFactory() : null;
+            receiver = open(factory);
+            write(receiver, "receiver\n");
+            sender = open(factory);
+            write(sender, "sender\nready\n");
+            // Skip the welcome, history and join notices; from here on the receiver only gets our lines
+            skipPast(receiver, "] ready\n");
+
+            byte[] line = new byte[LINE_BYTES];
+            Arrays.fill(line, (byte) 'x');
+            line[LINE_BYTES - 1] = '\n';
+            batch = new byte[LINES * LINE_BYTES];
+            for (int i = 0; i < LINES; i++) {
+                System.arraycopy(line, 0, batch, i * LINE_BYTES, LINE_BYTES);
+            }
+        }
+
+        @TearDown
+        public void stop() throws IOException {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileCopy {
+        @Param({"plain", "tls"})
+        public String connection;
+
+        private SSLContext context;
+        private File dir;
+        private File source;
+        private File target;
+
+        @Setup
+        public void createFile() throws Exception {
+            if (connection.equals("tls")) {
+                useKeyStore();
+                context = SSLContext.getDefault();
+            }
+            dir = Files.createTempDirectory("chat-bench").toFile();
+            source = TransferBenchmark.createSourceFile(dir, FILE_MB * 1024 * 1024);
+            target = new File(dir, "target.bin");
+            ChunkedTransfer.digestOf(source).join();
+        }
+
+        @TearDown
+        public void deleteFiles() {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int connect(Connections state) throws IOException {
+        Socket socket = open(state.factory);
+        try {
+            write(socket, "tls" + state.next++ + "\n/quit\n");
+            // The server closes the connection once it has handled /quit
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int bytes = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes += n;
+            }
+            if (state.connection.equals("tls-full")) {
+                // Drops the session (and the ticket that came with it) from the client's cache
+                ((SSLSocket) socket).getSession().invalidate();
+            }
+            return bytes;
+        } finally {
+            socket.close();
+        }
+    }
+
+    // LINES * LINE_BYTES (1 MB) through the server per call
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void chatStream(Stream state) throws IOException {
+        OutputStream out = state.sender.getOutputStream();
+        out.write(state.batch);
+        out.flush();
+        InputStream in = state.receiver.getInputStream();
+        int lines = 0;
+        while (lines < LINES) {
+            int n = in.read(state.buffer);
+            if (n < 0) throw new IOException("Server closed the connection");
+            for (int i = 0; i < n; i++) {
+                if (state.buffer[i] == '\n') lines++;
+            }
+        }
+    }
+
+    // One FILE_MB file over one data connection; the same as FileCopyBenchmark's CHUNKED path, plus TLS
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void fileCopy(FileCopy state) throws IOException, InterruptedException {
+        File stateFile = new File(state.target.getPath() + ".state");
+        stateFile.delete();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            SSLContext tls = state.context;
+            ChunkedTransfer.Connector connector = (tls == null)
+                    ? () -> ChatClient.openDataChannel(address)
+                    : () -> ChunkedTransfer.TlsChannel.client(tls, ChatClient.openDataChannel(address), "localhost", address.getPort());
+            IOException[] receiveError = new IOException[1];
+            Thread receiver = new Thread(() -> {
+                try {
+                    ChunkedTransfer.receive(connector, state.target, stateFile, 1, ChunkedTransfer.Meter.NONE);
+                } catch (IOException e) {
+                    receiveError[0] = e;
+                }
+            });
+            receiver.start();
+            try (ChunkedTransfer.Acceptor acceptor = new ChunkedTransfer.PortAcceptor(server)) {
+                ChunkedTransfer.serveSession(acceptor, state.source, 0, tls, false, 15000, ChunkedTransfer.Meter.NONE, () -> { });
+            }
+            receiver.join();
+            if (receiveError[0] != null) throw receiveError[0];
+        }
+    }
+
+    // Starts the server once per fork, on the loop threads ChatServer.main starts. Nagle is off so the
+    // small tail segment of each write does not wait on the client's delayed ACK, in both variants.
+    private static synchronized void startServer(boolean tls) throws Exception {
+        if (started) return;
+        started = true;
+        useKeyStore();
+        String[] args = {String.valueOf(PORT), "--mode=nio", "--queue=4096", "--log-level=warn", "--tcp-nodelay=on", "--tls=" + (tls ? "on" : "off")};
+        Thread server = new Thread(() -> {
+            try {
+                ChatServer.main(args);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "chat-server");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket probe = new Socket(InetAddress.getLoopbackAddress(), PORT)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // Generates a self-signed key pair for localhost and points the JDK's default SSLContext at it
+    private static synchronized void useKeyStore() throws IOException, InterruptedException {
+        if (System.getProperty("javax.net.ssl.keyStore") != null) return;
+        File dir = Files.createTempDirectory("chat-tls").toFile();
+        File store = new File(dir, "bench.p12");
+        Process keytool = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-validity", "2", "-storetype", "PKCS12", "-keystore", store.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (keytool.waitFor() != 0) throw new IOException("keytool could not create " + store);
+        store.deleteOnExit();
+        dir.deleteOnExit();
+        System.setProperty("javax.net.ssl.keyStore", store.getPath());
+        System.setProperty("javax.net.ssl.keyStorePassword", PASSWORD);
+        System.setProperty("javax.net.ssl.trustStore", store.getPath());
+        System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+    }
+
+    private static Socket open(SSLSocketFactory factory) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+        socket.setTcpNoDelay(true);
+        if (factory == null) return socket;
+        SSLSocket secure = (SSLSocket) factory.createSocket(socket, "localhost", PORT, true);
+        secure.startHandshake();
+        return secure;
+    }
+
+    private static void write(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void skipPast(Socket socket, String marker) throws IOException {
+        InputStream in = socket.getInputStream();
+        byte[] expected = marker.getBytes(StandardCharsets.UTF_8);
+        int matched = 0;
+        while (matched < expected.length) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Server closed the connection");
+            matched = (b == expected[matched]) ? matched + 1 : (b == expected[0] ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package chat;
+
+import java.io.OutputStream;
+
+// Fills the server's registry in-process: every user is a socketless ClientHandler whose
+// lines are written, on the sending thread, to a stream that discards them
+final class Users {
+    private Users() {
+    }
+
+    static ChatServer.ClientHandler[] join(String prefix, int count) {
+        ChatServer.useInlineWriters();
+        ChatServer.ClientHandler[] handlers = new ChatServer.ClientHandler[count];
+        for (int i = 0; i < count; i++) {
+            handlers[i] = join(prefix + i);
+        }
+        return handlers;
+    }
+
+    static ChatServer.ClientHandler join(String username) {
+        ChatServer.ClientHandler handler = new ChatServer.ClientHandler(username, OutputStream.nullOutputStream());
+        if (!ChatServer.register(handler)) {
+            throw new IllegalStateException(username + " is already online");
+        }
+        return handler;
+    }
+
+    static void leave(ChatServer.ClientHandler[] handlers) {
+        for (ChatServer.ClientHandler handler : handlers) {
+            ChatServer.unregister(handler);
+        }
+    }
+}
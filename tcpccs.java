@@ -1,265 +1,2212 @@
-import java.io.*;
-import java.net.*;
-
-class ChatClient {
-    private static String username;
-    private static PrintWriter out;
-    
-    // Static variables to hold the details of the incoming file request
-    private static String pendingSender;
-    private static String pendingFileName;
-    private static String pendingFileSize;
-    
-    private static String serverHost; 
-
-    public static void main(String args[]) throws IOException {
-        int port = 12345;  // default port
-        if (args.length < 2) {
-            System.out.println("Usage: java tcpccs.java <hostname> <username> [port]");
-            return;
-        } else if (args.length == 3) {
-            try {
-                port = Integer.parseInt(args[2]);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid port number. Using default port 12345.");
-            }
-        }
-
-        serverHost = args[0]; 
-        username = args[1];
-        InetSocketAddress serverAddress = new InetSocketAddress(serverHost, port);
-        Socket socket = new Socket();
-        socket.connect(serverAddress);
-
-        System.out.println("Connected to server. You can start sending messages.");
-
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter outWriter = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in))
-        ) {
-            out = outWriter; // assign to static variable
-
-            // Thread to continuously read messages from server
-            Thread readerThread = new Thread(() -> {
-                try {
-                    String msg;
-                    while ((msg = in.readLine()) != null) {
-                        if (msg.startsWith("/fileport ")) {
-                            // Sent by SENDER via server: /fileport <recipient> <port>
-                            // This initiates the RECEIVER thread
-                            String[] parts = msg.split(" ", 3);
-                            if (parts.length == 3) {
-                                String sender = parts[1]; // The current client's username (redundant)
-                                int portNum = Integer.parseInt(parts[2]);
-                                
-                                // Start file receiver in a separate thread. We use serverHost to connect to the sender.
-                                new Thread(() -> startFileReceiver(pendingSender, portNum)).start(); 
-                            }
-                        } else if (msg.startsWith("/filerequest ")) {
-                            // Sent privately by Server to RECIPIENT: /filerequest <sender> <filename> <size>
-                            String[] parts = msg.split(" ", 4);
-                            if (parts.length >= 4) {
-                                pendingSender = parts[1];
-                                pendingFileName = parts[2];
-                                pendingFileSize = parts[3];
-                            }
-                        } else if (msg.startsWith("/fileaccepted ")) {
-                            // Sent privately by Server to SENDER: /fileaccepted <recipient> <filename>
-                            String[] parts = msg.split(" ", 3);
-                            if (parts.length >= 3) {
-                                String recipient = parts[1];
-                                String filename = parts[2];
-                                
-                                // This is the SENDER. Start sending the file now.
-                                startFileSender(recipient, filename);
-                            }
-                        } else {
-                            // Normal chat messages
-                            System.out.println(msg);
-                        }
-                    }
-                } catch (IOException e) {}
-            });
-            readerThread.setDaemon(true);  // allows program to exit
-            readerThread.start();
-
-            // Send username as first message
-            out.println(username);
-
-            // Main thread reads user input and sends to server
-            String message;
-            while ((message = userInput.readLine()) != null) {
-                if (message.startsWith("/sendfile ")) {
-                    handleSendFile(message);
-                } else if (message.startsWith("/acceptfile ")) {
-                    handleAcceptFile(message);
-                } else if (message.startsWith("/rejectfile ")) {
-                    handleRejectFile(message);
-                } else {
-                    out.println(message);
-                }
-                if (message.equalsIgnoreCase("/quit")) break;
-            }
-
-            socket.close();
-        } catch (IOException e) {
-            System.out.println("Unable to connect to server: " + e.getMessage());
-        }
-    }
-
-    private static void handleSendFile(String command) {
-        String[] parts = command.split(" ", 3);
-        if (parts.length < 3) {
-            System.out.println("Usage: /sendfile <recipient> <filename>");
-            return;
-        }
-
-        String recipient = parts[1];
-        String filename = parts[2];
-        File file = new File(filename);
-
-        if (!file.exists()) {
-            System.out.println("File not found: " + filename);
-            return;
-        }
-
-        long sizeBytes = file.length();
-        String sizeKB = (sizeBytes / 1024) + " KB";
-
-        // Send to server: includes size info so server can broadcast & send private request
-        out.println("/sendfile " + recipient + " " + filename + " " + sizeKB);
-        
-        // Store info locally in case the acceptance comes back.
-        // This is only for the SENDER's context.
-        pendingSender = username; 
-        pendingFileName = filename;
-        pendingFileSize = sizeKB; 
-    }
-
-    private static void handleAcceptFile(String command) {
-        String[] parts = command.split(" ", 2);
-        if (parts.length < 2) return;
-        String senderName = parts[1];
-
-        // Check if the accepted user matches the pending user
-        if (!senderName.equalsIgnoreCase(pendingSender) || pendingFileName == null) {
-            System.out.println("[Server] No pending file request from " + senderName + ".");
-            return;
-        }
-        
-        // Tell server we accepted. Format: /acceptfile <sender> <filename>
-        // Server will relay /fileaccepted back to the sender
-        out.println("/acceptfile " + senderName + " " + pendingFileName);
-    }
-    
-    private static void handleRejectFile(String command) {
-        String[] parts = command.split(" ", 2);
-        if (parts.length < 2) return;
-        String senderName = parts[1];
-        
-        // Check if the rejected user matches the pending user
-        if (!senderName.equalsIgnoreCase(pendingSender) || pendingFileName == null) {
-            System.out.println("[Server] No pending file request from " + senderName + " to reject.");
-        return;
-    }
-        // Send reject to server. Server will relay to sender.
-        out.println(command); 
-        
-        // Clear pending state
-        if (senderName.equalsIgnoreCase(pendingSender)) {
-            pendingSender = null;
-            pendingFileName = null;
-            pendingFileSize = null;
-        }
-    }
-
-    // Sender side: starts after recipient accepts and server sends /fileaccepted
-    private static void startFileSender(String recipient, String filename) {
-        new Thread(() -> {
-            File fileToSend = new File(filename);
-            if (!fileToSend.exists()) {
-                System.out.println("[File Transfer Error: File " + filename + " not found locally.]");
-                return;
-            }
-            
-            try (ServerSocket serverSocket = new ServerSocket(0)) {
-                int port = serverSocket.getLocalPort();
-                
-                // Set a timeout in case the receiver never connects
-                serverSocket.setSoTimeout(15000); // 15 seconds
-
-                // Notify receiver (via server) which port to connect to
-                // Format: /fileport <recipient> <port>
-                out.println("/fileport " + recipient + " " + port);
-
-                Socket receiverSocket = serverSocket.accept();
-                try (FileInputStream fis = new FileInputStream(fileToSend);
-                     OutputStream os = receiverSocket.getOutputStream()) {
-
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long totalBytes = 0;
-
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        os.write(buffer, 0, bytesRead);
-                        totalBytes += bytesRead;
-                    }
-
-                    os.flush();
-                    long sizeKB = totalBytes / 1024;
-
-                } finally {
-                    receiverSocket.close();
-                }
-
-            } catch (SocketTimeoutException e) {
-                 System.out.println("[File transfer failed: Recipient " + recipient + " timed out during connection.]");
-            } catch (IOException e) {
-                System.out.println("[File transfer failed: connection lost with " + recipient + "]");
-            }
-        }).start();
-    }
-
-    // Receiver side: starts when readerThread receives /fileport
-    private static void startFileReceiver(String sender, int port) {
-        // Use the filename provided in the pending request for the save name
-        String saveFileName = "received_" + sender + "_" + pendingFileName;
-        File receivedFile = new File(saveFileName);
-        
-        try (Socket socket = new Socket(serverHost, port); // Connect to the SENDER's IP and port
-             InputStream in = socket.getInputStream();
-             FileOutputStream fos = new FileOutputStream(receivedFile)) {
- 
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            long totalBytes = 0;
-
-            while ((bytesRead = in.read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytes += bytesRead;
-            }
-
-            long sizeKB = totalBytes / 1024;
-            String completeMsg = "[File transfer complete from " + sender + " to "
-                    + username + " " + pendingFileName + " (" + sizeKB + " KB)]";
-
-            // Send message to server to broadcast to everyone
-            out.println("/filecomplete " + completeMsg);
-        
-        } catch (ConnectException e) {
-            System.out.println("[File transfer failed: Could not connect to sender's port. Ensure IP/Port is reachable.]");
-            if (receivedFile.exists()) receivedFile.delete(); // remove partial file
-        } catch (IOException e) {
-            System.out.println("[File transfer failed: " + e.getMessage() + "]");
-            if (receivedFile.exists()) {
-                receivedFile.delete(); // remove partial file
-            }
-        } finally {
-            // Clear pending state after transfer attempt
-            pendingSender = null;
-            pendingFileName = null;
-            pendingFileSize = null;
-        }
-    }
-}
\ No newline at end of file
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+
+class ChatClient {
+    private static String username;
+    private static PrintWriter out;           // text protocol
+    private static DataOutputStream frames;   // binary protocol
+
+    // Every incoming and outgoing file transfer, keyed by transfer id
+    private static TransferManager transfers;
+
+    private static String serverHost;
+
+    // Socket buffer sizes for file data connections; 0 leaves the OS default
+    private static int sendBufferSize = 0;
+    private static int receiveBufferSize = 0;
+    // Parallel data connections asked for when accepting a file
+    private static int streams = 1;
+    // Transfers that move data at the same time (others wait their turn) and their shared cap in KB/s (0 = none)
+    private static int maxTransfers = 4;
+    private static long maxRateKB = 0;
+    // direct = the receiver connects to the sender; relay = both connect to the server's relay port
+    private static String transport = "direct";
+    // text = one line per command; binary = length-prefixed frames (see Protocol)
+    private static String protocol = "text";
+    // TLS to the server, and for files we receive; sending over TLS needs -Djavax.net.ssl.keyStore
+    private static boolean tls = false;
+    private static boolean tlsKeys = false; // a keystore is configured, so files can be sent over TLS too
+    // Offer and accept deflated file chunks; used only when both ends have it on
+    private static boolean compress = true;
+    // Ask the server to deflate everything it sends us (binary protocol only)
+    private static boolean compressChat = false;
+
+    private static final int ACCEPT_TIMEOUT_MS = 15000; // how long the sender waits for the receiver
+    private static final int PORT_TIMEOUT_MS = 60000;   // how long an accepted transfer waits for /fileport
+    private static final int MAX_RESUME_ATTEMPTS = 3; // reconnects before the receiver gives up
+
+    public static void main(String args[]) throws IOException {
+        int port = 12345;  // default port
+        if (args.length >= 1 && args[0].equals("--bench-transfer")) {
+            TransferBenchmark.run(args);
+            return;
+        }
+
+        java.util.List<String> positional = new java.util.ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                if (!parseOption(arg)) {
+                    printUsage();
+                    return;
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() < 2 || positional.size() > 3) {
+            printUsage();
+            return;
+        } else if (compressChat && !protocol.equals("binary")) {
+            System.out.println("--compress-chat=on needs --protocol=binary.");
+            return;
+        } else if (positional.size() == 3) {
+            try {
+                port = Integer.parseInt(positional.get(2));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid port number. Using default port 12345.");
+            }
+        }
+
+        serverHost = positional.get(0);
+        username = positional.get(1);
+        transfers = new TransferManager(maxTransfers, maxRateKB * 1024);
+        InetSocketAddress serverAddress = new InetSocketAddress(serverHost, port);
+        Socket socket = new Socket();
+        socket.connect(serverAddress);
+        if (tls) {
+            socket = startTls(socket, serverHost, port);
+        }
+
+        System.out.println("Connected to server. You can start sending messages.");
+
+        try (
+            InputStream serverInput = new BufferedInputStream(socket.getInputStream());
+            OutputStream serverOutput = socket.getOutputStream();
+            BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in))
+        ) {
+            boolean binary = protocol.equals("binary");
+            boolean inflate = false;
+            if (binary) {
+                frames = new DataOutputStream(new BufferedOutputStream(serverOutput));
+                int version = handshake(socket, new DataInputStream(serverInput));
+                if (version < 0) {
+                    socket.close();
+                    return;
+                }
+                inflate = version == Protocol.VERSION_DEFLATE;
+            } else {
+                out = new PrintWriter(serverOutput, true);
+            }
+
+            // Thread to continuously read messages from server
+            boolean compressed = inflate;
+            Thread readerThread = new Thread(() -> {
+                try {
+                    if (binary) {
+                        DataInputStream in = new DataInputStream(compressed
+                                ? new java.util.zip.InflaterInputStream(serverInput, new java.util.zip.Inflater(), 64 * 1024) : serverInput);
+                        Protocol.Command command;
+                        while ((command = Protocol.read(in)) != null) {
+                            onServerCommand(command);
+                        }
+                    } else {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(serverInput));
+                        String msg;
+                        while ((msg = in.readLine()) != null) {
+                            onServerCommand(Protocol.parseLine(msg));
+                        }
+                    }
+                } catch (IOException e) {}
+            });
+            readerThread.setDaemon(true);  // allows program to exit
+            readerThread.start();
+
+            // Send username as first message
+            send(new Protocol.Command(Protocol.LOGIN, null, "", username, null));
+
+            // Main thread reads user input and sends to server
+            String message;
+            while ((message = userInput.readLine()) != null) {
+                if (message.startsWith("/sendfile ")) {
+                    handleSendFile(message);
+                } else if (message.startsWith("/acceptfile ")) {
+                    handleAcceptFile(message);
+                } else if (message.startsWith("/rejectfile ")) {
+                    handleRejectFile(message);
+                } else if (message.equals("/transfers")) {
+                    transfers.printStatus();
+                } else if (binary) {
+                    send(Protocol.fromInput(message));
+                } else {
+                    out.println(message);
+                }
+                if (message.equalsIgnoreCase("/quit")) break;
+            }
+
+            socket.close();
+        } catch (IOException e) {
+            System.out.println("Unable to connect to server: " + e.getMessage());
+        }
+    }
+
+    // Wraps the connected control socket; the server's certificate must be trusted (see
+    // -Djavax.net.ssl.trustStore) and name serverHost
+    private static Socket startTls(Socket socket, String host, int port) throws IOException {
+        javax.net.ssl.SSLContext context;
+        try {
+            context = javax.net.ssl.SSLContext.getDefault();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            socket.close();
+            throw new IOException("TLS is not available: " + e.getMessage(), e);
+        }
+        ChunkedTransfer.tls = context;
+        javax.net.ssl.SSLSocket secure = (javax.net.ssl.SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+        javax.net.ssl.SSLParameters parameters = secure.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        secure.setSSLParameters(parameters);
+        secure.startHandshake();
+        tlsKeys = System.getProperty("javax.net.ssl.keyStore") != null;
+        if (!tlsKeys) {
+            System.out.println("[TLS: receivers that want files over TLS will refuse yours until -Djavax.net.ssl.keyStore is set]");
+        }
+        return secure;
+    }
+
+    // Binary protocol: returns the version the server answered with, or -1 if it is not one we can use.
+    // With --compress-chat we ask for VERSION_DEFLATE, and a server may still answer plain VERSION.
+    private static int handshake(Socket socket, DataInputStream in) throws IOException {
+        byte asked = compressChat ? Protocol.VERSION_DEFLATE : Protocol.VERSION;
+        frames.write(new byte[] {Protocol.HANDSHAKE_MAGIC, asked});
+        frames.flush();
+        socket.setSoTimeout(ACCEPT_TIMEOUT_MS); // a text-only server never answers
+        try {
+            int magic = in.readByte();
+            int version = in.readUnsignedByte();
+            if (magic != Protocol.HANDSHAKE_MAGIC || (version != Protocol.VERSION && version != asked)) {
+                System.out.println("Server does not speak binary protocol version " + asked + ".");
+                return -1;
+            }
+            if (version != asked) {
+                System.out.println("[Server declined to compress this connection; continuing without]");
+            }
+            return version;
+        } catch (SocketTimeoutException | EOFException e) {
+            System.out.println("Server did not answer the binary protocol handshake; try --protocol=text.");
+            return -1;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
+    // Writes a command to the server in whichever wire format is in use
+    static void send(Protocol.Command command) {
+        if (frames == null) {
+            out.println(Protocol.toLine(command));
+            return;
+        }
+        byte[] frame = Protocol.encode(command);
+        synchronized (frames) {
+            try {
+                frames.write(frame);
+                frames.flush();
+            } catch (IOException e) {
+                // the reader thread sees the connection go
+            }
+        }
+    }
+
+    // Everything the server sends, whichever wire format it came in
+    private static void onServerCommand(Protocol.Command command) {
+        switch (command.op) {
+            case Protocol.FILEPORT: {
+                // Sent by SENDER via server: /fileport <sender> [#id=N:streams=N:relay=token:tls=1] <port> [streams]
+                // This hands the port to the RECEIVER task waiting for it
+                if (command.user == null || command.extra == null) return;
+                java.util.Map<String, String> tag = parseTag(command.tag);
+                String[] rest = command.extra.split(" ");
+                int portNum;
+                int streamCount;
+                try {
+                    portNum = Integer.parseInt(rest[0]);
+                    // Older senders put the count after the port, or leave it out for a single stream
+                    streamCount = (rest.length > 1) ? Integer.parseInt(rest[1]) : intTag(tag, "streams", 1);
+                } catch (NumberFormatException e) {
+                    System.out.println("[File Transfer Error: unreadable data port from " + command.user + ": " + command.extra + "]");
+                    return;
+                }
+                transfers.portReceived(command.user, intTag(tag, "id", 0),
+                        new TransferManager.DataPort(portNum, streamCount, tag.get("relay"), tag.containsKey("tls")));
+                return;
+            }
+            case Protocol.FILEREQUEST: {
+                // Sent privately by Server to RECIPIENT: /filerequest <sender> [#id=N:z=deflate] <filename> <size>
+                if (command.user == null || command.text == null) return;
+                java.util.Map<String, String> tag = parseTag(command.tag);
+                int id = intTag(tag, "id", 0);
+                TransferManager.Transfer offer = transfers.offered(command.user, id, command.text,
+                        (command.extra != null) ? command.extra : "unknown size");
+                if (offer != null) offer.deflate = compress && ChunkedTransfer.DEFLATE.equals(tag.get("z"));
+                if (offer != null && id > 0) {
+                    System.out.println("[Transfer " + id + " from " + offer.peer + ": " + offer.fileName
+                            + " (" + offer.sizeLabel + "). /acceptfile " + offer.peer + " " + id
+                            + " or /rejectfile " + offer.peer + " " + id + "]");
+                }
+                return;
+            }
+            case Protocol.FILEACCEPTED: {
+                // Sent privately by Server to SENDER: /fileaccepted <recipient> [#id=N:streams=N:relay=token:rport=N:tls=1:z=deflate] <filename>
+                if (command.user == null) return;
+                String recipient = command.user;
+                String fileName = (command.text != null) ? command.text : "";
+                java.util.Map<String, String> tag = parseTag(command.tag);
+                int requested = intTag(tag, "streams", 1);
+                int streamCount = Math.max(1, Math.min(requested, ChunkedTransfer.MAX_STREAMS));
+
+                TransferManager.Transfer transfer = transfers.accepted(recipient, intTag(tag, "id", 0), fileName);
+                if (transfer == null) {
+                    System.out.println("[File Transfer Error: no file offered to " + recipient + " as " + fileName + "]");
+                } else {
+                    // This is the SENDER. Start sending the file once a transfer slot is free.
+                    // A relay token means the recipient cannot be reached directly; go through the server.
+                    TransferManager.DataPort relayPort = tag.containsKey("relay")
+                            ? new TransferManager.DataPort(intTag(tag, "rport", 0), streamCount, tag.get("relay"), false) : null;
+                    // The receiver asks for TLS; we agree if we run with it too, and it refuses plain data otherwise
+                    boolean secure = tag.containsKey("tls") && tlsKeys;
+                    // Chunks go out deflated only if the receiver took up our z=deflate offer
+                    transfer.deflate = compress && ChunkedTransfer.DEFLATE.equals(tag.get("z"));
+                    transfers.submit(() -> startFileSender(transfer, streamCount, relayPort, secure));
+                }
+                return;
+            }
+            case Protocol.PING:
+                // The server has not heard from us for a while (--ping-interval); answering keeps us connected
+                send(new Protocol.Command(Protocol.PONG, null, "", null, null));
+                return;
+            case Protocol.FILEREJECTED:
+                // Sent privately by Server to SENDER: /filerejected <recipient> #id=N
+                if (command.user == null) return;
+                transfers.rejected(command.user, intTag(parseTag(command.tag), "id", 0));
+                System.out.println("[File transfer rejected by " + command.user + "]");
+                return;
+            default:
+                // Normal chat messages
+                System.out.println((command.text != null) ? command.text : "");
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java tcpccs.java <hostname> <username> [port] [--sndbuf=bytes] [--rcvbuf=bytes] [--streams=n]");
+        System.out.println("                        [--max-transfers=n] [--max-rate=KB/s] [--transport=direct|relay]");
+        System.out.println("                        [--protocol=text|binary] [--tls=on|off] [--compress=on|off] [--compress-chat=on|off]");
+        System.out.println("       java tcpccs.java --bench-transfer [max_MB]");
+    }
+
+    // Options are --name=value; returns false for anything unknown or malformed
+    private static boolean parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) return false;
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        try {
+            switch (name) {
+                case "sndbuf":
+                    sendBufferSize = Integer.parseInt(value);
+                    return sendBufferSize >= 0;
+                case "rcvbuf":
+                    receiveBufferSize = Integer.parseInt(value);
+                    return receiveBufferSize >= 0;
+                case "streams":
+                    streams = Integer.parseInt(value);
+                    return streams >= 1 && streams <= ChunkedTransfer.MAX_STREAMS;
+                case "max-transfers":
+                    maxTransfers = Integer.parseInt(value);
+                    return maxTransfers >= 1;
+                case "max-rate":
+                    maxRateKB = Long.parseLong(value);
+                    return maxRateKB >= 0;
+                case "transport":
+                    if (!value.equals("direct") && !value.equals("relay")) return false;
+                    transport = value;
+                    return true;
+                case "protocol":
+                    if (!value.equals("text") && !value.equals("binary")) return false;
+                    protocol = value;
+                    return true;
+                case "tls":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    tls = value.equals("on");
+                    return true;
+                case "compress":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    compress = value.equals("on");
+                    return true;
+                case "compress-chat":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    compressChat = value.equals("on");
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // File commands carry an optional "#key=value:key=value" tag right after the user name.
+    // Returns {tag, rest}, with an empty tag when there is none.
+    static String[] splitTag(String text) {
+        if (!text.startsWith("#")) return new String[] {"", text};
+        int space = text.indexOf(' ');
+        return (space < 0) ? new String[] {text, ""} : new String[] {text.substring(0, space), text.substring(space + 1)};
+    }
+
+    // "#a:b=1" from the entries that are not null, or "" when there are none
+    static String formatTag(String... entries) {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : entries) {
+            if (entry == null) continue;
+            sb.append(sb.length() == 0 ? "#" : ":").append(entry);
+        }
+        return sb.toString();
+    }
+
+    static java.util.Map<String, String> parseTag(String tag) {
+        java.util.Map<String, String> values = new java.util.HashMap<>();
+        if (tag.startsWith("#")) {
+            for (String pair : tag.substring(1).split(":")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) values.put(pair.substring(0, eq), pair.substring(eq + 1));
+            }
+        }
+        return values;
+    }
+
+    static int intTag(java.util.Map<String, String> tag, String key, int fallback) {
+        try {
+            return tag.containsKey(key) ? Integer.parseInt(tag.get(key)) : fallback;
+        } catch (NumberFormatException e) {
+            return fallback; // unreadable value: behave as if it was left out
+        }
+    }
+
+    private static void handleSendFile(String command) {
+        String[] parts = command.split(" ", 3);
+        if (parts.length < 3) {
+            System.out.println("Usage: /sendfile <recipient> <filename>");
+            return;
+        }
+
+        String recipient = parts[1];
+        String filename = parts[2];
+        File file = new File(filename);
+
+        if (!file.exists()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+
+        long sizeBytes = file.length();
+        String sizeKB = (sizeBytes / 1024) + " KB";
+
+        // Start hashing now so the manifest is usually ready by the time the recipient accepts
+        ChunkedTransfer.digestOf(file);
+
+        // Remember what this id refers to; the acceptance comes back carrying it
+        TransferManager.Transfer transfer = transfers.offer(recipient, filename, sizeKB, sizeBytes);
+
+        // Send to server: includes size info so server can broadcast & send private request
+        send(new Protocol.Command(Protocol.SENDFILE, recipient,
+                formatTag("id=" + transfer.id, compress ? "z=" + ChunkedTransfer.DEFLATE : null), filename, sizeKB));
+    }
+
+    private static void handleAcceptFile(String command) {
+        // Format: /acceptfile <sender> [id]; without an id the oldest offer from that sender is taken
+        String[] parts = command.split(" ");
+        if (parts.length < 2) return;
+        String senderName = parts[1];
+        TransferManager.Transfer offer = transfers.findOffer(senderName, (parts.length > 2) ? parts[2] : null);
+
+        if (offer == null) {
+            System.out.println("[Server] No pending file request from " + senderName + ".");
+            return;
+        }
+        if (transfers.isReceiving(offer.peer, offer.fileName)) {
+            System.out.println("[" + offer.fileName + " from " + offer.peer + " is already being received; accept this one when it finishes]");
+            return;
+        }
+        offer.state = TransferManager.State.ACCEPTED;
+        if (transfers.isBusy()) {
+            System.out.println("[Transfer " + offer.describe() + " queued until another transfer finishes]");
+        }
+        transfers.submit(() -> startFileReceiver(offer));
+    }
+
+    private static void handleRejectFile(String command) {
+        String[] parts = command.split(" ");
+        if (parts.length < 2) return;
+        String senderName = parts[1];
+        TransferManager.Transfer offer = transfers.findOffer(senderName, (parts.length > 2) ? parts[2] : null);
+
+        if (offer == null) {
+            System.out.println("[Server] No pending file request from " + senderName + " to reject.");
+            return;
+        }
+        // Send reject to server. Server will relay to sender.
+        send(new Protocol.Command(Protocol.REJECTFILE, offer.peer, offer.id > 0 ? "#id=" + offer.id : "", null, null));
+        transfers.finish(offer, TransferManager.State.REJECTED);
+    }
+
+    // Sender side: runs on a transfer slot after recipient accepts and server sends /fileaccepted.
+    // relayPort is set when the data goes through the server's relay instead of our own port, and
+    // secure when the data connections run TLS (end to end, so the relay only sees ciphertext).
+    private static void startFileSender(TransferManager.Transfer transfer, int streamCount, TransferManager.DataPort relayPort,
+                                        boolean secure) {
+        String recipient = transfer.peer;
+        File fileToSend = new File(transfer.fileName);
+        if (!fileToSend.exists()) {
+            System.out.println("[File Transfer Error: File " + transfer.fileName + " not found locally.]");
+            transfers.finish(transfer, TransferManager.State.FAILED);
+            return;
+        }
+
+        try (ChunkedTransfer.Acceptor acceptor = (relayPort != null)
+                ? new ChunkedTransfer.RelayAcceptor(new InetSocketAddress(serverHost, relayPort.port), relayPort.relayToken, sendBufferSize)
+                : new ChunkedTransfer.PortAcceptor(ServerSocketChannel.open().bind(new InetSocketAddress(0)))) {
+            int port = acceptor.port();
+
+            // Notify receiver (via server) which port to connect to and how many connections we agreed to
+            // Format: /fileport <recipient> #id=N:streams=N[:relay=token][:tls=1] <port>, or /fileport <recipient> <port> [streams]
+            // for untagged offers
+            if (transfer.id > 0 || relayPort != null || secure) {
+                send(new Protocol.Command(Protocol.FILEPORT, recipient, formatTag(transfer.id > 0 ? "id=" + transfer.id : null,
+                        "streams=" + streamCount, relayPort != null ? "relay=" + relayPort.relayToken : null,
+                        secure ? "tls=1" : null), null, String.valueOf(port)));
+            } else {
+                send(new Protocol.Command(Protocol.FILEPORT, recipient, "", null, port + (streamCount > 1 ? " " + streamCount : "")));
+            }
+
+            // The port stays open after a broken connection so the receiver can reconnect and resume
+            transfer.started();
+            ChunkedTransfer.serveSession(acceptor, fileToSend, sendBufferSize, secure ? ChunkedTransfer.tls : null,
+                    transfer.deflate, ACCEPT_TIMEOUT_MS, transfer, () -> System.out.println("[File transfer to " + recipient + " interrupted; waiting for it to resume]"));
+            transfers.finish(transfer, TransferManager.State.DONE);
+
+        } catch (SocketTimeoutException e) {
+             System.out.println("[File transfer failed: Recipient " + recipient + " timed out during connection.]");
+             transfers.finish(transfer, TransferManager.State.FAILED);
+        } catch (IOException e) {
+            System.out.println("[File transfer failed: connection lost with " + recipient + "]");
+            transfers.finish(transfer, TransferManager.State.FAILED);
+        }
+    }
+
+    // Connects a blocking data channel; the receive buffer is sized before connect so the window scale covers it
+    static SocketChannel openDataChannel(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // Receiver side: runs on a transfer slot; sends the acceptance, then waits for the sender's /fileport
+    private static void startFileReceiver(TransferManager.Transfer transfer) {
+        String sender = transfer.peer;
+        String fileName = transfer.fileName;
+        String saveFileName = "received_" + sender + "_" + fileName;
+        File receivedFile = new File(saveFileName);
+        // Verified data lands in .part; .part.state records how far it is good, so a broken
+        // transfer (or a later resend of the same file) picks up from there
+        File partFile = new File(saveFileName + ".part");
+        File stateFile = new File(saveFileName + ".part.state");
+
+        // Tell server we accepted. Format: /acceptfile <sender> [#id=N:streams=N:relay:tls=1:z=deflate] <filename>
+        // Server will relay /fileaccepted back to the sender, tag included
+        String tag = formatTag(transfer.id > 0 ? "id=" + transfer.id : null, streams > 1 ? "streams=" + streams : null,
+                transport.equals("relay") ? "relay" : null, tls ? "tls=1" : null,
+                transfer.deflate ? "z=" + ChunkedTransfer.DEFLATE : null);
+        send(new Protocol.Command(Protocol.ACCEPTFILE, sender, tag, fileName, null));
+
+        try {
+            TransferManager.DataPort dataPort;
+            try {
+                dataPort = transfer.port.get(PORT_TIMEOUT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                throw new SocketTimeoutException(sender + " never opened a data port");
+            } catch (InterruptedException | java.util.concurrent.ExecutionException e) {
+                throw new InterruptedIOException("Stopped waiting for " + sender);
+            }
+            // the SENDER's IP and port, or the server's relay port
+            InetSocketAddress senderAddress = new InetSocketAddress(serverHost, dataPort.port);
+            int streamCount = dataPort.streams;
+            if (tls && !dataPort.tls) {
+                throw new IOException(sender + " cannot send over TLS");
+            }
+            ChunkedTransfer.Connector plain = (dataPort.relayToken == null)
+                    ? () -> openDataChannel(senderAddress)
+                    : () -> ChunkedTransfer.RelayAcceptor.connect(openDataChannel(senderAddress), dataPort.relayToken);
+            // Every stream names the same host and port, so the later ones resume the first one's TLS session
+            ChunkedTransfer.Connector connector = !tls ? plain
+                    : () -> ChunkedTransfer.TlsChannel.client(ChunkedTransfer.tls, (SocketChannel) plain.open(), serverHost, dataPort.port);
+
+            transfer.started();
+            ChunkedTransfer.Manifest manifest = null;
+            for (int attempt = 0; manifest == null; attempt++) {
+                try {
+                    manifest = ChunkedTransfer.receive(connector, partFile, stateFile, streamCount, transfer);
+                } catch (IOException e) {
+                    if (attempt >= MAX_RESUME_ATTEMPTS || (attempt == 0 && e instanceof ConnectException)) throw e;
+                    System.out.println("[File transfer from " + sender + " interrupted (" + e.getMessage()
+                            + "); resuming from " + (ChunkedTransfer.verifiedBytes(stateFile) / 1024) + " KB]");
+                    try {
+                        Thread.sleep(1000L << attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+
+            if (!ChunkedTransfer.matchesDigest(partFile, manifest)) {
+                partFile.delete();
+                stateFile.delete();
+                System.out.println("[File transfer failed: " + fileName + " from " + sender + " does not match the sender's SHA-256]");
+                transfers.finish(transfer, TransferManager.State.FAILED);
+                return;
+            }
+            java.nio.file.Files.move(partFile.toPath(), receivedFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            stateFile.delete();
+            transfers.finish(transfer, TransferManager.State.DONE);
+
+            long sizeKB = manifest.size / 1024;
+            String completeMsg = "[File transfer complete from " + sender + " to "
+                    + username + " " + fileName + " (" + sizeKB + " KB)]";
+
+            // Send message to server to broadcast to everyone; the tag lets it match the transfer for its metrics
+            send(new Protocol.Command(Protocol.FILECOMPLETE, null,
+                    formatTag(transfer.id > 0 ? "id=" + transfer.id : null, "from=" + sender), completeMsg, null));
+
+        } catch (IOException e) {
+            transfers.finish(transfer, TransferManager.State.FAILED);
+            if (e instanceof ConnectException) {
+                System.out.println("[File transfer failed: Could not connect to sender's port. Ensure IP/Port is reachable.]");
+            } else {
+                System.out.println("[File transfer failed: " + e.getMessage() + "]");
+            }
+            if (stateFile.exists()) {
+                // partial data is kept; accepting a resend of the same file resumes from here
+                System.out.println("[" + (ChunkedTransfer.verifiedBytes(stateFile) / 1024) + " KB of " + fileName
+                        + " kept; it will resume if " + sender + " sends it again]");
+            }
+        }
+    }
+}
+
+// The chat server's two wire formats. With --protocol=text the client sends its username and then one
+// command per line, as it always has. With --protocol=binary it sends HANDSHAKE_MAGIC and a version byte
+// instead, the server answers with the same two bytes, and from then on both sides exchange
+//   frame = int length of the rest | opcode byte | fields
+//   field = varint byte count | UTF-8 bytes
+// Each opcode carries a fixed subset of the fields user, tag, text and extra, always in that order, so no
+// field needs splitting on spaces. Both formats are turned into the same Command. Keep the opcodes in
+// step with ChatServer.Protocol. When the server answers VERSION_DEFLATE, what it sends after those two
+// bytes is one zlib stream of frames; what the client sends stays as it is.
+class Protocol {
+    static final byte HANDSHAKE_MAGIC = 0;
+    static final byte VERSION = 1;
+    static final byte VERSION_DEFLATE = 2;
+    static final int MAX_FRAME = 1024 * 1024;
+
+    // client -> server
+    static final byte LOGIN = 0x01;
+    static final byte CHAT = 0x02;
+    static final byte WHO = 0x03;
+    static final byte QUIT = 0x04;
+    static final byte SENDFILE = 0x05;
+    static final byte ACCEPTFILE = 0x06;
+    static final byte REJECTFILE = 0x07;
+    static final byte FILEPORT = 0x08;    // also server -> client, naming the sender
+    static final byte FILECOMPLETE = 0x09;
+    static final byte JOIN = 0x0A;
+    static final byte LEAVE = 0x0B;
+    static final byte ROOMS = 0x0C;
+    static final byte MSG = 0x0D;
+    static final byte HISTORY = 0x0E;
+    static final byte PONG = 0x0F;        // the answer to PING
+    // server -> client
+    static final byte MESSAGE = 0x10;
+    static final byte FILEREQUEST = 0x11;
+    static final byte FILEACCEPTED = 0x12;
+    static final byte FILEREJECTED = 0x13;
+    static final byte PING = 0x14;        // the server checking that a quiet client is still there
+
+    private static final int USER = 1;
+    private static final int TAG = 2;
+    private static final int TEXT = 4;
+    private static final int EXTRA = 8;
+    private static final int UNKNOWN = -1;
+    private static final int[] FIELDS = new int[0x20];
+
+    static {
+        java.util.Arrays.fill(FIELDS, UNKNOWN);
+        FIELDS[LOGIN] = TEXT;
+        FIELDS[CHAT] = TEXT;
+        FIELDS[WHO] = 0;
+        FIELDS[QUIT] = 0;
+        FIELDS[SENDFILE] = USER | TAG | TEXT | EXTRA;
+        FIELDS[ACCEPTFILE] = USER | TAG | TEXT;
+        FIELDS[REJECTFILE] = USER | TAG;
+        FIELDS[FILEPORT] = USER | TAG | EXTRA;
+        FIELDS[FILECOMPLETE] = TAG | TEXT;
+        FIELDS[JOIN] = TEXT;
+        FIELDS[LEAVE] = TEXT;
+        FIELDS[ROOMS] = 0;
+        FIELDS[MSG] = USER | TEXT;
+        FIELDS[HISTORY] = TEXT;
+        FIELDS[PONG] = 0;
+        FIELDS[MESSAGE] = TEXT;
+        FIELDS[FILEREQUEST] = USER | TAG | TEXT | EXTRA;
+        FIELDS[FILEACCEPTED] = USER | TAG | TEXT;
+        FIELDS[FILEREJECTED] = USER | TAG;
+        FIELDS[PING] = 0;
+    }
+
+    // One command, whichever wire format it travels in. Missing fields are null; tag is never null.
+    static final class Command {
+        final byte op;
+        final String user;
+        final String tag;
+        final String text;
+        final String extra;
+
+        Command(byte op, String user, String tag, String text, String extra) {
+            this.op = op;
+            this.user = user;
+            this.tag = (tag == null) ? "" : tag;
+            this.text = text;
+            this.extra = extra;
+        }
+    }
+
+    // Something typed at the prompt that the client does not handle itself
+    static Command fromInput(String line) {
+        if (line.equalsIgnoreCase("/quit")) return new Command(QUIT, null, "", null, null);
+        if (line.equalsIgnoreCase("/who")) return new Command(WHO, null, "", null, null);
+        if (line.equalsIgnoreCase("/rooms")) return new Command(ROOMS, null, "", null, null);
+        if (line.startsWith("/join ") || line.equals("/join") || line.startsWith("/leave ") || line.equals("/leave")) {
+            // /join <room>, /leave [room]
+            int space = line.indexOf(' ');
+            String room = (space < 0) ? "" : line.substring(space + 1).trim();
+            return new Command(line.startsWith("/join") ? JOIN : LEAVE, null, "", room.isEmpty() ? null : room, null);
+        }
+        if (line.startsWith("/history ") || line.equals("/history")) {
+            // /history [n]
+            String count = line.substring("/history".length()).trim();
+            return new Command(HISTORY, null, "", count.isEmpty() ? null : count, null);
+        }
+        if (line.startsWith("/msg ")) {
+            // /msg <user> <text>
+            String[] parts = line.split(" ", 3);
+            return new Command(MSG, parts[1].isEmpty() ? null : parts[1], "", (parts.length == 3 && !parts[2].isEmpty()) ? parts[2] : null, null);
+        }
+        return new Command(CHAT, null, "", line, null);
+    }
+
+    // The text line for a client -> server command
+    static String toLine(Command command) {
+        String tag = command.tag.isEmpty() ? "" : command.tag + " ";
+        switch (command.op) {
+            case WHO:
+                return "/who";
+            case QUIT:
+                return "/quit";
+            case ROOMS:
+                return "/rooms";
+            case PONG:
+                return "/pong";
+            case JOIN:
+                return "/join" + (command.text == null ? "" : " " + command.text);
+            case LEAVE:
+                return "/leave" + (command.text == null ? "" : " " + command.text);
+            case HISTORY:
+                return "/history" + (command.text == null ? "" : " " + command.text);
+            case MSG:
+                return "/msg " + command.user + " " + (command.text == null ? "" : command.text);
+            case SENDFILE:
+                return "/sendfile " + command.user + " " + tag + command.text + " " + command.extra;
+            case ACCEPTFILE:
+                return "/acceptfile " + command.user + " " + tag + command.text;
+            case REJECTFILE:
+                return "/rejectfile " + command.user + (command.tag.isEmpty() ? "" : " " + command.tag);
+            case FILEPORT:
+                return "/fileport " + command.user + " " + tag + command.extra;
+            case FILECOMPLETE:
+                return "/filecomplete " + tag + command.text;
+            default:
+                return command.text;
+        }
+    }
+
+    // A text line from the server; anything that is not a file command or a ping is a message to show
+    static Command parseLine(String line) {
+        if (line.equals("/ping")) return new Command(PING, null, "", null, null);
+        if (line.startsWith("/fileport ")) {
+            // /fileport <sender> [#tag] <port> [streams]
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) return new Command(FILEPORT, null, "", null, null);
+            String[] tagged = ChatClient.splitTag(parts[2]);
+            return new Command(FILEPORT, parts[1], tagged[0], null, tagged[1]);
+        }
+        if (line.startsWith("/filerequest ")) {
+            // /filerequest <sender> [#tag] <filename> <size>
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) return new Command(FILEREQUEST, null, "", null, null);
+            String[] tagged = ChatClient.splitTag(parts[2]);
+            String[] rest = tagged[1].split(" ", 2);
+            return new Command(FILEREQUEST, parts[1], tagged[0], rest[0], (rest.length == 2) ? rest[1] : null);
+        }
+        if (line.startsWith("/fileaccepted ")) {
+            // /fileaccepted <recipient> [#tag] <filename>
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) return new Command(FILEACCEPTED, null, "", null, null);
+            String[] tagged = ChatClient.splitTag(parts[2]);
+            return new Command(FILEACCEPTED, parts[1], tagged[0], tagged[1], null);
+        }
+        if (line.startsWith("/filerejected ")) {
+            // /filerejected <recipient> #tag
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) return new Command(FILEREJECTED, null, "", null, null);
+            return new Command(FILEREJECTED, parts[1], parts[2], null, null);
+        }
+        return new Command(MESSAGE, null, "", line, null);
+    }
+
+    static byte[] encode(Command command) {
+        int fields = FIELDS[command.op];
+        String[] source = {command.user, command.tag, command.text, command.extra};
+        byte[][] values = new byte[4][];
+        int length = 1;
+        for (int i = 0; i < 4; i++) {
+            if ((fields & (1 << i)) == 0) continue;
+            values[i] = (source[i] == null ? "" : source[i]).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            length += varintSize(values[i].length) + values[i].length;
+        }
+        java.nio.ByteBuffer frame = java.nio.ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(command.op);
+        for (byte[] value : values) {
+            if (value == null) continue;
+            putVarint(frame, value.length);
+            frame.put(value);
+        }
+        return frame.array();
+    }
+
+    // The next frame from the server, or null at end of stream
+    static Command read(DataInputStream input) throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1 || length > MAX_FRAME) throw new IOException("Bad frame length " + length);
+        byte[] frame = new byte[length];
+        input.readFully(frame);
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(frame);
+        try {
+            byte op = buffer.get();
+            int fields = (op >= 0 && op < FIELDS.length) ? FIELDS[op] : UNKNOWN;
+            if (fields == UNKNOWN) throw new IOException("Unknown opcode " + op);
+            // An empty field reads as missing, the same as a word left off a text line
+            String user = ((fields & USER) != 0) ? getString(buffer) : null;
+            String tag = ((fields & TAG) != 0) ? getString(buffer) : null;
+            String text = ((fields & TEXT) != 0) ? getString(buffer) : null;
+            String extra = ((fields & EXTRA) != 0) ? getString(buffer) : null;
+            if (buffer.hasRemaining()) throw new IOException("Malformed frame");
+            return new Command(op, user, tag, text, extra);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    private static String getString(java.nio.ByteBuffer buffer) throws IOException {
+        int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) throw new IOException("Malformed frame");
+        if (length == 0) return null;
+        String value = new String(buffer.array(), buffer.position(), length, java.nio.charset.StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void putVarint(java.nio.ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(java.nio.ByteBuffer buffer) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+        throw new IOException("Malformed length");
+    }
+}
+
+// Every file transfer this client is part of. A sender numbers its offers and the number travels
+// as "#id=N" through /sendfile, /filerequest, /acceptfile, /fileaccepted, /fileport and /filecomplete,
+// so several transfers with one or many peers can be in flight without overwriting each other.
+// Data moves on a bounded pool of transfer slots and shares one bandwidth cap.
+class TransferManager {
+    enum State { OFFERED, ACCEPTED, RUNNING, DONE, FAILED, REJECTED }
+
+    private static final long KEEP_FINISHED_NANOS = 10L * 60 * 1_000_000_000L; // listed in /transfers this long
+
+    static class Transfer implements ChunkedTransfer.Meter {
+        final int id;
+        final boolean outgoing;
+        final String peer;
+        final String fileName;
+        final String sizeLabel;
+        volatile State state = State.OFFERED;
+        volatile long totalBytes;
+        final java.util.concurrent.atomic.AtomicLong bytes = new java.util.concurrent.atomic.AtomicLong();
+        volatile long startNanos;
+        volatile long endNanos;
+        // Both ends agreed to deflate chunks that compress; wireBytes is what this run actually sent or
+        // received, against the bytes it moved beyond the resumedBytes an earlier attempt verified
+        volatile boolean deflate;
+        final java.util.concurrent.atomic.AtomicLong wireBytes = new java.util.concurrent.atomic.AtomicLong();
+        volatile long resumedBytes;
+        // Receiver only: filled in by the sender's /fileport
+        final java.util.concurrent.CompletableFuture<DataPort> port = new java.util.concurrent.CompletableFuture<>();
+        private final RateLimiter limiter;
+
+        Transfer(int id, boolean outgoing, String peer, String fileName, String sizeLabel, long totalBytes, RateLimiter limiter) {
+            this.id = id;
+            this.outgoing = outgoing;
+            this.peer = peer;
+            this.fileName = fileName;
+            this.sizeLabel = sizeLabel;
+            this.totalBytes = totalBytes;
+            this.limiter = limiter;
+        }
+
+        void started() {
+            startNanos = System.nanoTime();
+            state = State.RUNNING;
+        }
+
+        @Override
+        public void onStart(long size, long alreadyVerified) {
+            totalBytes = size;
+            bytes.set(alreadyVerified);
+            resumedBytes = alreadyVerified;
+            wireBytes.set(0);
+        }
+
+        // The cap is on the link, so deflated chunks use up only what they take on it
+        @Override
+        public void onChunk(int length, int wireLength) throws IOException {
+            limiter.acquire(wireLength);
+            bytes.addAndGet(length);
+            wireBytes.addAndGet(wireLength);
+        }
+
+        String describe() {
+            return (id > 0 ? "#" + id + " " : "") + (outgoing ? "to " : "from ") + peer + " " + fileName;
+        }
+    }
+
+    // Where the receiver connects: the sender's port, or the server's relay port plus the transfer's token
+    static class DataPort {
+        final int port;
+        final int streams;
+        final String relayToken;
+        final boolean tls; // the sender agreed to TLS on the data connections
+
+        DataPort(int port, int streams, String relayToken, boolean tls) {
+            this.port = port;
+            this.streams = streams;
+            this.relayToken = relayToken;
+            this.tls = tls;
+        }
+    }
+
+    // Token bucket shared by every transfer; each chunk reserves its bytes and sleeps off any debt,
+    // so concurrent transfers split the cap instead of each getting all of it
+    static class RateLimiter {
+        private final long bytesPerSecond;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(bytesPerSecond, ChunkedTransfer.CHUNK_SIZE);
+            this.tokens = capacity;
+        }
+
+        void acquire(int n) throws InterruptedIOException {
+            if (bytesPerSecond <= 0) return;
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+                lastRefill = now;
+                tokens -= n;
+                waitNanos = (tokens < 0) ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+            }
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limited");
+                }
+            }
+        }
+    }
+
+    private final java.util.concurrent.atomic.AtomicInteger nextId = new java.util.concurrent.atomic.AtomicInteger();
+    private final java.util.Map<Integer, Transfer> outgoing = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.Map<String, Transfer> incoming = new java.util.concurrent.ConcurrentHashMap<>();
+    private final java.util.concurrent.ThreadPoolExecutor slots;
+    private final RateLimiter limiter;
+
+    TransferManager(int maxTransfers, long bytesPerSecond) {
+        java.util.concurrent.atomic.AtomicInteger threads = new java.util.concurrent.atomic.AtomicInteger();
+        slots = new java.util.concurrent.ThreadPoolExecutor(maxTransfers, maxTransfers, 60, java.util.concurrent.TimeUnit.SECONDS,
+                new java.util.concurrent.LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "transfer-" + threads.incrementAndGet());
+                    t.setDaemon(true); // a running transfer does not keep /quit from exiting
+                    return t;
+                });
+        slots.allowCoreThreadTimeOut(true);
+        limiter = new RateLimiter(bytesPerSecond);
+    }
+
+    private static String key(String peer, int id) {
+        return peer.toLowerCase(java.util.Locale.ROOT) + "#" + id;
+    }
+
+    // --- sender ---
+
+    Transfer offer(String recipient, String fileName, String sizeLabel, long size) {
+        pruneFinished();
+        Transfer transfer = new Transfer(nextId.incrementAndGet(), true, recipient, fileName, sizeLabel, size, limiter);
+        outgoing.put(transfer.id, transfer);
+        return transfer;
+    }
+
+    // The recipient's /fileaccepted; untagged acceptances match the oldest offer of that file to that user
+    Transfer accepted(String recipient, int id, String fileName) {
+        Transfer match = null;
+        if (id > 0) {
+            match = outgoing.get(id);
+        } else {
+            for (Transfer t : outgoing.values()) {
+                if (t.fileName.equals(fileName) && (match == null || t.id < match.id)
+                        && t.peer.equalsIgnoreCase(recipient) && t.state == State.OFFERED) {
+                    match = t;
+                }
+            }
+        }
+        if (match == null || !match.peer.equalsIgnoreCase(recipient) || match.state != State.OFFERED) return null;
+        match.state = State.ACCEPTED;
+        return match;
+    }
+
+    void rejected(String recipient, int id) {
+        Transfer transfer = outgoing.get(id);
+        if (transfer != null && transfer.peer.equalsIgnoreCase(recipient)) {
+            finish(transfer, State.REJECTED);
+        }
+    }
+
+    // --- receiver ---
+
+    // A /filerequest; a repeated offer with the same id replaces the old one
+    Transfer offered(String sender, int id, String fileName, String sizeLabel) {
+        pruneFinished();
+        Transfer transfer = new Transfer(id, false, sender, fileName, sizeLabel, 0, limiter);
+        Transfer previous = incoming.get(key(sender, id));
+        if (previous != null && previous.state != State.OFFERED && !isFinished(previous)) return null;
+        incoming.put(key(sender, id), transfer);
+        return transfer;
+    }
+
+    // Offer from sender with the given id, or the oldest one when idText is null
+    Transfer findOffer(String sender, String idText) {
+        if (idText != null) {
+            try {
+                Transfer t = incoming.get(key(sender, Integer.parseInt(idText)));
+                return (t != null && t.state == State.OFFERED) ? t : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        Transfer oldest = null;
+        for (Transfer t : incoming.values()) {
+            if (t.peer.equalsIgnoreCase(sender) && t.state == State.OFFERED && (oldest == null || t.id < oldest.id)) {
+                oldest = t;
+            }
+        }
+        return oldest;
+    }
+
+    // Two live transfers into the same received_<sender>_<file> would write over each other
+    boolean isReceiving(String sender, String fileName) {
+        for (Transfer t : incoming.values()) {
+            if (t.peer.equalsIgnoreCase(sender) && t.fileName.equals(fileName)
+                    && (t.state == State.ACCEPTED || t.state == State.RUNNING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void portReceived(String sender, int id, DataPort port) {
+        Transfer transfer = incoming.get(key(sender, id));
+        if (transfer == null || !transfer.port.complete(port)) {
+            System.out.println("[File transfer from " + sender + ": no accepted transfer is waiting for port " + port.port + "]");
+        }
+    }
+
+    // --- both ---
+
+    void submit(Runnable work) {
+        slots.execute(work);
+    }
+
+    boolean isBusy() {
+        return slots.getActiveCount() >= slots.getMaximumPoolSize();
+    }
+
+    void finish(Transfer transfer, State state) {
+        transfer.endNanos = System.nanoTime();
+        transfer.state = state;
+        transfer.port.cancel(false);
+    }
+
+    private static boolean isFinished(Transfer t) {
+        return t.state == State.DONE || t.state == State.FAILED || t.state == State.REJECTED;
+    }
+
+    private void pruneFinished() {
+        long now = System.nanoTime();
+        outgoing.values().removeIf(t -> isFinished(t) && now - t.endNanos > KEEP_FINISHED_NANOS);
+        incoming.values().removeIf(t -> isFinished(t) && now - t.endNanos > KEEP_FINISHED_NANOS);
+    }
+
+    // /transfers: one line per transfer with bytes moved and its average rate
+    void printStatus() {
+        java.util.List<Transfer> all = new java.util.ArrayList<>(outgoing.values());
+        all.addAll(incoming.values());
+        if (all.isEmpty()) {
+            System.out.println("[No file transfers]");
+            return;
+        }
+        all.sort(java.util.Comparator.comparingLong(t -> t.startNanos));
+        System.out.println("[Transfers: " + slots.getActiveCount() + " running, " + slots.getQueue().size() + " queued]");
+        for (Transfer t : all) {
+            long done = t.bytes.get();
+            StringBuilder line = new StringBuilder("  ").append(t.describe()).append(' ')
+                    .append(t.state.name().toLowerCase(java.util.Locale.ROOT));
+            if (t.startNanos != 0) {
+                long end = (t.endNanos != 0) ? t.endNanos : System.nanoTime();
+                double seconds = Math.max(1e-3, (end - t.startNanos) / 1e9);
+                line.append(' ').append(done / 1024).append(" of ").append(t.totalBytes / 1024).append(" KB");
+                if (t.totalBytes > 0) line.append(" (").append(Math.min(100, done * 100 / t.totalBytes)).append("%)");
+                line.append(String.format(" %.1f KB/s", done / 1024.0 / seconds));
+                long wire = t.wireBytes.get();
+                if (t.deflate && wire > 0) line.append(String.format(", deflated %.1fx", (done - t.resumedBytes) / (double) wire));
+            } else {
+                line.append(' ').append(t.sizeLabel);
+            }
+            System.out.println(line);
+        }
+    }
+}
+
+// Chunked data protocol used on the peer-to-peer file connections:
+//   sender   -> receiver  manifest: MAGIC, total size, chunk size, SHA-256 of the whole file
+//   receiver -> sender    request:  MAGIC, offset, length (a range it still needs)
+//   sender   -> receiver  chunks:   length, CRC32C, bytes ... then a zero-length chunk
+// A connection can carry several requests in turn, and the receiver may open several
+// connections to fetch disjoint ranges in parallel. Once every range is verified it sends a
+// DONE request (offset -1) so the sender can close its port. The receiver keeps a small
+// .state file listing the ranges still missing, so a dropped transfer only resends those.
+// With TLS the same protocol runs inside a TlsChannel on each connection.
+// When both ends agreed to compression the manifest starts with MAGIC_DEFLATE instead, and each
+// chunk header gains a third int: how many bytes follow. Fewer than the chunk's length means
+// they are the chunk deflated, the same means it went out as it is. Length and CRC32C are
+// those of the file bytes either way, so ranges, resume state and checks work as before.
+class ChunkedTransfer {
+    static final int MAGIC = 0x43434654; // "CCFT"
+    static final int MAGIC_DEFLATE = 0x4343465A; // "CCFZ"
+    static final String DEFLATE = "deflate";     // z= tag value offering and accepting compression
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int MAX_STREAMS = 16;     // most parallel connections a sender will agree to
+    private static final long DONE = -1;   // request offset meaning "all ranges verified"
+    private static final long CHECKPOINT_BYTES = 64L * CHUNK_SIZE; // fsync + save state this often
+    private static final int PROBE_BYTES = 64 * 1024; // deflated first to tell whether a chunk is worth it
+    private static final int MIN_SAVING = 16;         // a deflated chunk must be at least 1/16 smaller
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int DEFLATE_AHEAD = Math.max(2, Math.min(8, CORES + 1)); // chunks in flight per connection
+
+    // Deflates chunks for every sending connection. Each connection keeps DEFLATE_AHEAD chunks queued
+    // here, so one large file keeps every core busy while its connection writes them out in order.
+    private static final java.util.concurrent.ExecutorService deflaters = java.util.concurrent.Executors.newFixedThreadPool(CORES, r -> {
+        Thread thread = new Thread(r, "deflate");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Level 1: on text and logs it keeps most of the ratio of the higher levels at several times their speed
+    private static final ThreadLocal<java.util.zip.Deflater> deflater =
+            ThreadLocal.withInitial(() -> new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED));
+
+    // SHA-256 per file, keyed by path, size and mtime so a resend or resume does not hash again
+    private static final java.util.concurrent.ConcurrentHashMap<String, java.util.concurrent.CompletableFuture<byte[]>> digests =
+            new java.util.concurrent.ConcurrentHashMap<>();
+
+    // Keys and trust for TLS data connections; set when the client runs with --tls=on
+    static volatile javax.net.ssl.SSLContext tls;
+
+    // Opens one more data connection to the sender
+    interface Connector {
+        ByteChannel open() throws IOException;
+    }
+
+    // Told about every chunk as it is sent or verified; may block to hold a bandwidth cap.
+    // wireLength is what the chunk took on the connection, less than length when it was deflated.
+    interface Meter {
+        Meter NONE = (length, wireLength) -> { };
+
+        void onChunk(int length, int wireLength) throws IOException;
+
+        // Receiver only: the file size and how much of it an earlier attempt already verified
+        default void onStart(long size, long alreadyVerified) {
+        }
+    }
+
+    static class Manifest {
+        final long size;
+        final int chunkSize;
+        final byte[] sha256;
+        final boolean deflate; // chunk headers carry a wire length and chunks may arrive deflated
+
+        Manifest(long size, int chunkSize, byte[] sha256, boolean deflate) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+            this.deflate = deflate;
+        }
+    }
+
+    // Bytes [next, end) of the file are still missing; next moves up as chunks are verified
+    static class Range {
+        volatile long next;
+        final long end;
+
+        Range(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - next;
+        }
+    }
+
+    // --- sender ---
+
+    static java.util.concurrent.CompletableFuture<byte[]> digestOf(File file) {
+        String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        return digests.computeIfAbsent(key, k -> java.util.concurrent.CompletableFuture.supplyAsync(() -> {
+            try {
+                return sha256(file, file.length());
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        }));
+    }
+
+    // Serves every connection the acceptor hands over, each on its own thread, until the receiver
+    // reports DONE. While no connection is open a (re)connect must arrive within idleTimeoutMillis;
+    // onInterrupted runs the first time a connection breaks. With a tlsContext each connection is
+    // the server end of a TLS session, handshaken on its worker thread. With deflate, chunks that
+    // compress go out deflated.
+    static void serveSession(Acceptor acceptor, File file, int sendBufferSize, javax.net.ssl.SSLContext tlsContext,
+                             boolean deflate, long idleTimeoutMillis, Meter meter, Runnable onInterrupted) throws IOException {
+        byte[] digest;
+        try {
+            digest = digestOf(file).join();
+        } catch (java.util.concurrent.CompletionException e) {
+            throw new IOException("Could not hash " + file + ": " + e.getCause().getMessage());
+        }
+
+        java.util.concurrent.atomic.AtomicBoolean done = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.AtomicBoolean interrupted = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.concurrent.atomic.AtomicInteger active = new java.util.concurrent.atomic.AtomicInteger();
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long deadline = System.currentTimeMillis() + idleTimeoutMillis;
+            while (!done.get()) {
+                long now = System.currentTimeMillis();
+                if (active.get() > 0) {
+                    deadline = now + idleTimeoutMillis;
+                } else if (now >= deadline) {
+                    if (interrupted.get()) throw new IOException("receiver did not resume");
+                    throw new SocketTimeoutException("Accept timed out");
+                }
+                SocketChannel channel = acceptor.accept(deadline - now);
+                if (channel == null) continue;
+
+                if (sendBufferSize > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                }
+                active.incrementAndGet();
+                Thread worker = new Thread(() -> {
+                    try (ByteChannel socket = (tlsContext != null) ? TlsChannel.server(tlsContext, channel) : channel) {
+                        if (serveConnection(fileChannel, digest, socket, deflate, meter)) done.set(true);
+                    } catch (IOException e) {
+                        if (!done.get() && interrupted.compareAndSet(false, true)) onInterrupted.run();
+                    } finally {
+                        active.decrementAndGet();
+                        acceptor.wakeup();
+                    }
+                }, "file-send");
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    // Where the sender's data connections come from
+    interface Acceptor extends Closeable {
+        // The port to announce in /fileport
+        int port();
+
+        // The next receiver connection in blocking mode, or null if none arrived in time
+        SocketChannel accept(long timeoutMillis) throws IOException;
+
+        // Lets a waiting accept return early so the caller can look at its state again
+        void wakeup();
+    }
+
+    // Receivers connect straight to an ephemeral port on the sender
+    static class PortAcceptor implements Acceptor {
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+
+        PortAcceptor(ServerSocketChannel serverChannel) throws IOException {
+            this.serverChannel = serverChannel;
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public int port() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        @Override
+        public SocketChannel accept(long timeoutMillis) throws IOException {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                selector.select(Math.max(1, timeoutMillis));
+                selector.selectedKeys().clear();
+                channel = serverChannel.accept();
+            }
+            if (channel != null) channel.configureBlocking(true);
+            return channel;
+        }
+
+        @Override
+        public void wakeup() {
+            selector.wakeup();
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+            serverChannel.close();
+        }
+    }
+
+    // Receivers reach the sender through the chat server's relay port. The sender keeps one standby
+    // connection parked there under the transfer's token; the relay sends a single byte on it once a
+    // receiver connection has been paired with it, and another standby is opened for the next one.
+    static class RelayAcceptor implements Acceptor {
+        static final int MAGIC = 0x4343524C; // "CCRL"
+        static final byte ROLE_SENDER = 1;
+        static final byte ROLE_RECEIVER = 2;
+        private static final int POLL_MILLIS = 1000; // how often a parked accept checks whether the session ended
+
+        private final InetSocketAddress relay;
+        private final byte[] token;
+        private final int sendBufferSize;
+        private SocketChannel standby;
+
+        RelayAcceptor(InetSocketAddress relay, String token, int sendBufferSize) {
+            this.relay = relay;
+            this.token = fromHex(token);
+            this.sendBufferSize = sendBufferSize;
+        }
+
+        @Override
+        public int port() {
+            return relay.getPort();
+        }
+
+        @Override
+        public SocketChannel accept(long timeoutMillis) throws IOException {
+            if (standby == null) {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    if (sendBufferSize > 0) {
+                        channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+                    }
+                    channel.connect(relay);
+                    writeHello(channel, ROLE_SENDER, token);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                standby = channel;
+            }
+            int paired;
+            try {
+                standby.socket().setSoTimeout((int) Math.max(1, Math.min(POLL_MILLIS, timeoutMillis)));
+                paired = standby.socket().getInputStream().read();
+            } catch (SocketTimeoutException e) {
+                return null;
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            SocketChannel channel = standby;
+            standby = null;
+            if (paired != 1) {
+                channel.close();
+                throw new IOException("Relay closed the connection");
+            }
+            channel.socket().setSoTimeout(0);
+            return channel;
+        }
+
+        @Override
+        public void wakeup() {
+            // a parked accept polls every POLL_MILLIS anyway
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (standby != null) {
+                standby.close();
+                standby = null;
+            }
+        }
+
+        // Receiver side: the first bytes on a relayed data connection name the transfer
+        static SocketChannel connect(SocketChannel channel, String token) throws IOException {
+            try {
+                writeHello(channel, ROLE_RECEIVER, fromHex(token));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        private static void writeHello(SocketChannel channel, byte role, byte[] token) throws IOException {
+            java.nio.ByteBuffer hello = java.nio.ByteBuffer.allocate(4 + 1 + token.length);
+            hello.putInt(MAGIC).put(role).put(token).flip();
+            writeFully(channel, hello);
+        }
+
+        private static byte[] fromHex(String hex) {
+            byte[] bytes = new byte[hex.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            }
+            return bytes;
+        }
+    }
+
+    // Answers range requests on one connection; true once the receiver reports DONE,
+    // false if it simply closes the connection between requests
+    private static boolean serveConnection(FileChannel fileChannel, byte[] digest, ByteChannel socket,
+                                           boolean deflate, Meter meter) throws IOException {
+        long size = fileChannel.size();
+        java.nio.ByteBuffer manifest = java.nio.ByteBuffer.allocate(4 + 8 + 4 + digest.length);
+        manifest.putInt(deflate ? MAGIC_DEFLATE : MAGIC).putLong(size).putInt(CHUNK_SIZE).put(digest).flip();
+        writeFully(socket, manifest);
+
+        java.nio.ByteBuffer request = java.nio.ByteBuffer.allocate(4 + 8 + 8);
+        java.nio.ByteBuffer end = java.nio.ByteBuffer.allocate(deflate ? 12 : 8);
+        java.nio.ByteBuffer chunk = deflate ? null : java.nio.ByteBuffer.allocateDirect(CHUNK_SIZE);
+        while (true) {
+            request.clear();
+            if (socket.read(request) < 0) return false;
+            readFully(socket, request);
+            request.flip();
+            if (request.getInt() != MAGIC) throw new IOException("Bad transfer request");
+            long offset = request.getLong();
+            long length = request.getLong();
+            if (offset == DONE) return true;
+            if (offset < 0 || length < 0 || offset + length > size) {
+                throw new IOException("Requested range " + offset + "+" + length + " is outside the file");
+            }
+
+            if (deflate) {
+                sendDeflatedRange(fileChannel, socket, offset, offset + length, meter);
+            } else {
+                sendRange(fileChannel, socket, offset, offset + length, chunk, meter);
+            }
+            end.clear();
+            while (end.hasRemaining()) end.put((byte) 0);
+            end.flip();
+            writeFully(socket, end);
+        }
+    }
+
+    // The CRC header goes out before its chunk, so every byte has to pass through user space first. Each
+    // chunk is read once into the connection's direct buffer, checksummed there and written from it, which
+    // costs one pass over the file; a transferTo after the CRC would read the page cache a second time.
+    private static void sendRange(FileChannel fileChannel, ByteChannel socket, long from, long to,
+                                  java.nio.ByteBuffer chunk, Meter meter) throws IOException {
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(8);
+        for (long position = from; position < to; ) {
+            int length = (int) Math.min(CHUNK_SIZE, to - position);
+            meter.onChunk(length, length);
+            readChunk(fileChannel, chunk, position, length);
+            crc.reset();
+            crc.update(chunk);
+            chunk.rewind();
+
+            header.clear();
+            header.putInt(length).putInt((int) crc.getValue()).flip();
+            writeFully(socket, header);
+            writeFully(socket, chunk);
+            position += length;
+        }
+    }
+
+    // Fills buffer with the length bytes at position, ready to be read
+    private static void readChunk(FileChannel fileChannel, java.nio.ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File ended at " + (position + buffer.position()) + " while sending it");
+            }
+        }
+        buffer.flip();
+    }
+
+    // Chunks are deflated on the shared pool, up to DEFLATE_AHEAD of them ahead of the one being
+    // written, and go out in file order
+    private static void sendDeflatedRange(FileChannel fileChannel, ByteChannel socket, long from, long to,
+                                          Meter meter) throws IOException {
+        java.util.ArrayDeque<java.util.concurrent.Future<EncodedChunk>> ahead = new java.util.ArrayDeque<>();
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(12);
+        long next = from;
+        try {
+            while (next < to || !ahead.isEmpty()) {
+                while (next < to && ahead.size() < DEFLATE_AHEAD) {
+                    long position = next;
+                    int length = (int) Math.min(CHUNK_SIZE, to - position);
+                    ahead.add(deflaters.submit(() -> EncodedChunk.of(fileChannel, position, length)));
+                    next += length;
+                }
+                EncodedChunk chunk;
+                try {
+                    chunk = ahead.poll().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while deflating");
+                } catch (java.util.concurrent.ExecutionException e) {
+                    throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+                int wireLength = chunk.bytes.remaining();
+                meter.onChunk(chunk.length, wireLength);
+                header.clear();
+                header.putInt(chunk.length).putInt(chunk.crc).putInt(wireLength).flip();
+                writeFully(socket, header);
+                writeFully(socket, chunk.bytes);
+            }
+        } finally {
+            for (java.util.concurrent.Future<EncodedChunk> pending : ahead) {
+                pending.cancel(false);
+            }
+        }
+    }
+
+    // One chunk as it goes on the wire: deflated if that saves at least 1/MIN_SAVING, else as it is in the file
+    private static final class EncodedChunk {
+        final int length;
+        final int crc;
+        final java.nio.ByteBuffer bytes;
+
+        private EncodedChunk(int length, int crc, java.nio.ByteBuffer bytes) {
+            this.length = length;
+            this.crc = crc;
+            this.bytes = bytes;
+        }
+
+        // Runs on a deflate thread. Data that is compressed already (archives, media) fails on its
+        // first PROBE_BYTES, which costs a small part of a full attempt. The chunk gets a buffer of its
+        // own, since it may go out as it is while this thread is already reading the next one.
+        static EncodedChunk of(FileChannel file, long position, int length) throws IOException {
+            java.nio.ByteBuffer raw = java.nio.ByteBuffer.allocate(length);
+            readChunk(file, raw, position, length);
+            java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+            crc.update(raw);
+            raw.rewind();
+
+            java.util.zip.Deflater deflater = ChunkedTransfer.deflater.get();
+            int probe = Math.min(PROBE_BYTES, length);
+            if (deflate(deflater, raw.slice().limit(probe), new byte[probe - probe / MIN_SAVING]) >= 0) {
+                byte[] out = new byte[length - length / MIN_SAVING];
+                int n = deflate(deflater, raw, out);
+                if (n >= 0) return new EncodedChunk(length, (int) crc.getValue(), java.nio.ByteBuffer.wrap(out, 0, n));
+                raw.rewind();
+            }
+            return new EncodedChunk(length, (int) crc.getValue(), raw);
+        }
+
+        // Deflates all of data into out; the deflated length, or -1 if it does not fit
+        private static int deflate(java.util.zip.Deflater deflater, java.nio.ByteBuffer data, byte[] out) {
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return deflater.finished() ? n : -1;
+        }
+    }
+
+    // --- receiver ---
+
+    // Fetches into partFile whatever stateFile says is still missing, split over up to `streams`
+    // connections from connector, and returns the manifest once every byte is verified. Progress
+    // is saved even when this throws, so the caller can retry and only missing ranges are requested.
+    static Manifest receive(Connector connector, File partFile, File stateFile, int streams, Meter meter)
+            throws IOException {
+        try (ByteChannel first = connector.open()) {
+            Manifest manifest = readManifest(first);
+            ResumeState state = ResumeState.load(stateFile);
+            boolean fresh = state == null || !state.matches(manifest) || !partFile.exists();
+            if (fresh) {
+                state = new ResumeState(manifest);
+            }
+            state.split(streams);
+            meter.onStart(manifest.size, state.verified());
+
+            try (FileChannel file = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (fresh) {
+                    file.truncate(0);
+                }
+                state.save(stateFile);
+
+                java.util.Queue<Range> queue = new java.util.concurrent.ConcurrentLinkedQueue<>(state.pending);
+                java.util.concurrent.atomic.AtomicInteger unfinished = new java.util.concurrent.atomic.AtomicInteger(queue.size());
+                if (queue.isEmpty()) {
+                    sendDone(first);
+                    return manifest;
+                }
+
+                // Every connection pulls ranges from the same queue and writes them at their own offsets
+                ResumeState shared = state;
+                int workers = Math.max(1, Math.min(streams, queue.size()));
+                java.util.List<Thread> threads = new java.util.ArrayList<>();
+                IOException[] errors = new IOException[workers];
+                for (int i = 1; i < workers; i++) {
+                    int index = i;
+                    Thread thread = new Thread(() -> {
+                        try (ByteChannel socket = connector.open()) {
+                            Manifest other = readManifest(socket);
+                            if (other.size != manifest.size || !java.util.Arrays.equals(other.sha256, manifest.sha256)) {
+                                throw new IOException("Sender changed the file mid-transfer");
+                            }
+                            fetchRanges(socket, file, manifest, shared, stateFile, queue, unfinished, meter);
+                        } catch (IOException e) {
+                            errors[index] = e;
+                        }
+                    }, "file-receive-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                    threads.add(thread);
+                }
+                try {
+                    fetchRanges(first, file, manifest, state, stateFile, queue, unfinished, meter);
+                } catch (IOException e) {
+                    errors[0] = e;
+                }
+                try {
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while receiving");
+                } finally {
+                    state.checkpoint(file, stateFile);
+                }
+
+                for (IOException error : errors) {
+                    if (error != null) throw error;
+                }
+                return manifest;
+            }
+        }
+    }
+
+    private static Manifest readManifest(ByteChannel socket) throws IOException {
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(4 + 8 + 4 + 32);
+        readFully(socket, header);
+        header.flip();
+        int magic = header.getInt();
+        if (magic != MAGIC && magic != MAGIC_DEFLATE) throw new IOException("Sender does not speak the chunked transfer protocol");
+        long size = header.getLong();
+        int chunkSize = header.getInt();
+        byte[] digest = new byte[32];
+        header.get(digest);
+        if (chunkSize <= 0 || chunkSize > 64 * 1024 * 1024) throw new IOException("Bad chunk size " + chunkSize);
+        return new Manifest(size, chunkSize, digest, magic == MAGIC_DEFLATE);
+    }
+
+    // Requests ranges from the queue one at a time on this connection; whichever connection
+    // finishes the last one tells the sender the transfer is DONE
+    private static void fetchRanges(ByteChannel socket, FileChannel file, Manifest manifest, ResumeState state,
+                                    File stateFile, java.util.Queue<Range> queue,
+                                    java.util.concurrent.atomic.AtomicInteger unfinished, Meter meter) throws IOException {
+        java.nio.ByteBuffer request = java.nio.ByteBuffer.allocate(4 + 8 + 8);
+        java.nio.ByteBuffer data = java.nio.ByteBuffer.allocateDirect(manifest.chunkSize);
+        Inflating inflating = manifest.deflate ? new Inflating(manifest.chunkSize) : null;
+        try {
+            Range range;
+            while ((range = queue.poll()) != null) {
+                request.clear();
+                request.putInt(MAGIC).putLong(range.next).putLong(range.remaining()).flip();
+                writeFully(socket, request);
+                receiveChunks(socket, file, manifest, range, data, inflating, state, stateFile, meter);
+                if (unfinished.decrementAndGet() == 0) {
+                    sendDone(socket);
+                }
+            }
+        } finally {
+            if (inflating != null) inflating.inflater.end();
+        }
+    }
+
+    // A connection's inflater and the buffer its deflated chunks are read into
+    private static final class Inflating {
+        final java.util.zip.Inflater inflater = new java.util.zip.Inflater();
+        final java.nio.ByteBuffer encoded;
+
+        Inflating(int chunkSize) {
+            encoded = java.nio.ByteBuffer.allocateDirect(chunkSize);
+        }
+
+        // Inflates encoded into data, which must come out exactly full
+        void inflate(java.nio.ByteBuffer data, long offset) throws IOException {
+            inflater.reset();
+            inflater.setInput(encoded);
+            try {
+                while (!inflater.finished() && data.hasRemaining()) {
+                    if (inflater.inflate(data) == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                }
+            } catch (java.util.zip.DataFormatException e) {
+                throw new IOException("Corrupt deflated chunk at offset " + offset, e);
+            }
+            if (!inflater.finished() || data.hasRemaining()) {
+                throw new IOException("Deflated chunk at offset " + offset + " has the wrong length");
+            }
+        }
+    }
+
+    private static void sendDone(ByteChannel socket) throws IOException {
+        java.nio.ByteBuffer request = java.nio.ByteBuffer.allocate(4 + 8 + 8);
+        request.putInt(MAGIC).putLong(DONE).putLong(0).flip();
+        writeFully(socket, request);
+    }
+
+    private static void receiveChunks(ByteChannel socket, FileChannel file, Manifest manifest, Range range,
+                                      java.nio.ByteBuffer data, Inflating inflating, ResumeState state, File stateFile,
+                                      Meter meter) throws IOException {
+        java.nio.ByteBuffer header = java.nio.ByteBuffer.allocate(manifest.deflate ? 12 : 8);
+        java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        long sinceCheckpoint = 0;
+
+        while (true) {
+            header.clear();
+            readFully(socket, header);
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            int wireLength = manifest.deflate ? header.getInt() : length;
+            if (length == 0) break;
+            if (length < 0 || length > manifest.chunkSize || range.next + length > range.end
+                    || wireLength <= 0 || wireLength > length) {
+                throw new IOException("Bad chunk header at offset " + range.next);
+            }
+
+            data.clear().limit(length);
+            if (wireLength < length) {
+                inflating.encoded.clear().limit(wireLength);
+                readFully(socket, inflating.encoded);
+                inflating.encoded.flip();
+                inflating.inflate(data, range.next);
+            } else {
+                readFully(socket, data);
+            }
+            data.flip();
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Checksum mismatch in chunk at offset " + range.next);
+            }
+            data.rewind();
+            long position = range.next;
+            while (data.hasRemaining()) {
+                position += file.write(data, position);
+            }
+            range.next += length;
+            meter.onChunk(length, wireLength);
+
+            sinceCheckpoint += length;
+            if (sinceCheckpoint >= CHECKPOINT_BYTES) {
+                state.checkpoint(file, stateFile);
+                sinceCheckpoint = 0;
+            }
+        }
+        if (range.next != range.end) {
+            throw new IOException("Sender stopped at " + range.next + " of " + range.end + " bytes");
+        }
+    }
+
+    static boolean matchesDigest(File file, Manifest manifest) throws IOException {
+        return file.length() == manifest.size && java.security.MessageDigest.isEqual(sha256(file, manifest.size), manifest.sha256);
+    }
+
+    static long verifiedBytes(File stateFile) {
+        ResumeState state = ResumeState.load(stateFile);
+        return (state == null) ? 0 : state.verified();
+    }
+
+    // Text sidecar: "size=<n> chunk=<n> sha256=<hex>" then "pending=<from>-<to>,..." listing the
+    // byte ranges not yet verified; everything outside them is already on disk
+    static class ResumeState {
+        final long size;
+        final int chunkSize;
+        final String sha256;
+        java.util.List<Range> pending;
+
+        ResumeState(Manifest manifest) {
+            this(manifest.size, manifest.chunkSize, toHex(manifest.sha256), new java.util.ArrayList<>());
+            if (size > 0) pending.add(new Range(0, size));
+        }
+
+        private ResumeState(long size, int chunkSize, String sha256, java.util.List<Range> pending) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.sha256 = sha256;
+            this.pending = pending;
+        }
+
+        boolean matches(Manifest manifest) {
+            return size == manifest.size && chunkSize == manifest.chunkSize && sha256.equals(toHex(manifest.sha256));
+        }
+
+        long verified() {
+            long missing = 0;
+            for (Range range : pending) {
+                missing += range.remaining();
+            }
+            return size - missing;
+        }
+
+        // Cuts the missing ranges at chunk boundaries into pieces of about (missing / streams) bytes,
+        // so each connection gets a share and a resume can use a different stream count
+        void split(int streams) {
+            long piece = (size - verified() + streams - 1) / Math.max(1, streams);
+            piece = Math.max(chunkSize, (piece + chunkSize - 1) / chunkSize * chunkSize);
+            java.util.List<Range> pieces = new java.util.ArrayList<>();
+            for (Range range : pending) {
+                for (long from = range.next; from < range.end; from += piece) {
+                    pieces.add(new Range(from, Math.min(range.end, from + piece)));
+                }
+            }
+            pending = pieces;
+        }
+
+        // Only claims bytes that are on disk: positions are read before the fsync, so a crash
+        // cannot leave the state ahead of the data written by any connection
+        synchronized void checkpoint(FileChannel file, File stateFile) throws IOException {
+            String ranges = describePending();
+            file.force(false);
+            write(stateFile, ranges);
+        }
+
+        synchronized void save(File stateFile) throws IOException {
+            write(stateFile, describePending());
+        }
+
+        private String describePending() {
+            StringBuilder sb = new StringBuilder();
+            for (Range range : pending) {
+                long next = range.next;
+                if (next >= range.end) continue;
+                if (sb.length() > 0) sb.append(',');
+                sb.append(next).append('-').append(range.end);
+            }
+            return sb.toString();
+        }
+
+        private void write(File stateFile, String ranges) throws IOException {
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            try (PrintWriter writer = new PrintWriter(new FileWriter(tmp))) {
+                writer.println("size=" + size);
+                writer.println("chunk=" + chunkSize);
+                writer.println("sha256=" + sha256);
+                writer.println("pending=" + ranges);
+            }
+            java.nio.file.Files.move(tmp.toPath(), stateFile.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        static ResumeState load(File stateFile) {
+            if (!stateFile.exists()) return null;
+            try {
+                java.util.Properties properties = new java.util.Properties();
+                try (FileInputStream in = new FileInputStream(stateFile)) {
+                    properties.load(in);
+                }
+                long size = Long.parseLong(properties.getProperty("size"));
+                java.util.List<Range> pending = new java.util.ArrayList<>();
+                String ranges = properties.getProperty("pending");
+                if (ranges == null) {
+                    // single-stream sidecar: everything below "verified" is good
+                    long verified = Long.parseLong(properties.getProperty("verified"));
+                    if (verified < size) pending.add(new Range(verified, size));
+                } else if (!ranges.isEmpty()) {
+                    for (String range : ranges.split(",")) {
+                        int dash = range.indexOf('-');
+                        long from = Long.parseLong(range.substring(0, dash));
+                        long to = Long.parseLong(range.substring(dash + 1));
+                        if (from < 0 || from > to || to > size) return null;
+                        pending.add(new Range(from, to));
+                    }
+                }
+                return new ResumeState(size, Integer.parseInt(properties.getProperty("chunk")),
+                        properties.getProperty("sha256"), pending);
+            } catch (IOException | RuntimeException e) {
+                return null; // unreadable state just means starting over
+            }
+        }
+    }
+
+    // --- helpers ---
+
+    private static byte[] sha256(File file, long length) throws IOException {
+        java.security.MessageDigest digest;
+        try {
+            digest = java.security.MessageDigest.getInstance("SHA-256");
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < length) {
+                buffer.clear();
+                int n = channel.read(buffer, position);
+                if (n < 0) break;
+                position += n;
+                buffer.flip();
+                digest.update(buffer);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static void readFully(ReadableByteChannel socket, java.nio.ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (socket.read(buffer) < 0) throw new EOFException("Connection closed by peer");
+        }
+    }
+
+    static void writeFully(WritableByteChannel socket, java.nio.ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    // Blocking TLS over a connected data channel, through an SSLSocket layered on the channel's socket.
+    // Writes are handed over BUFFER_SIZE bytes at a time so the socket cuts them into full-size records.
+    // Like the channels it replaces, each one is used by a single thread.
+    static final class TlsChannel implements ByteChannel {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final javax.net.ssl.SSLSocket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private TlsChannel(javax.net.ssl.SSLSocket socket) throws IOException {
+            this.socket = socket;
+            try {
+                socket.startHandshake();
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        // The receiver's end. Naming the sender's host and port lets the JDK's session cache resume
+        // the first stream's session for the others and for reconnects, instead of a full handshake.
+        static TlsChannel client(javax.net.ssl.SSLContext context, SocketChannel channel, String host, int port) throws IOException {
+            javax.net.ssl.SSLSocket socket = (javax.net.ssl.SSLSocket) context.getSocketFactory()
+                    .createSocket(channel.socket(), host, port, true);
+            return new TlsChannel(socket);
+        }
+
+        // The sender's end; its certificate comes from -Djavax.net.ssl.keyStore
+        static TlsChannel server(javax.net.ssl.SSLContext context, SocketChannel channel) throws IOException {
+            javax.net.ssl.SSLSocket socket = (javax.net.ssl.SSLSocket) context.getSocketFactory()
+                    .createSocket(channel.socket(), null, channel.socket().getPort(), true);
+            socket.setUseClientMode(false);
+            return new TlsChannel(socket);
+        }
+
+        @Override
+        public int read(java.nio.ByteBuffer dst) throws IOException {
+            int n = in.read(buffer, 0, Math.min(dst.remaining(), BUFFER_SIZE));
+            if (n > 0) dst.put(buffer, 0, n);
+            return n;
+        }
+
+        @Override
+        public int write(java.nio.ByteBuffer src) throws IOException {
+            int n = Math.min(src.remaining(), BUFFER_SIZE);
+            src.get(buffer, 0, n);
+            out.write(buffer, 0, n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
+
+// Loopback throughput of the file data path: the original 4 KB stream loop, raw transferTo/transferFrom,
+// and the chunked protocol (CRC32C per chunk plus the receiver's final SHA-256 check) over one
+// connection and over PARALLEL_STREAMS connections.
+// Usage: java tcpccs.java --bench-transfer [max_MB]   (sizes 1 MB .. 4 GB, capped at max_MB)
+class TransferBenchmark {
+    private static final long MB = 1024 * 1024;
+    private static final long[] SIZES_MB = {1, 16, 256, 1024, 4096};
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    private static final int PARALLEL_STREAMS = 4;
+
+    enum Path { LOOP, ZERO_COPY, CHUNKED, PARALLEL }
+
+    static void run(String[] args) throws IOException {
+        long maxMB = (args.length > 1) ? Long.parseLong(args[1]) : 4096;
+        File dir = java.nio.file.Files.createTempDirectory("tcpccs-bench").toFile();
+        File target = new File(dir, "target.bin");
+        try {
+            // Warm up both paths so the first row is not measuring class loading and JIT
+            File warmup = createSourceFile(dir, 16 * MB);
+            for (Path path : Path.values()) {
+                measure(warmup, target, path);
+            }
+            warmup.delete();
+
+            System.out.printf("%-10s %16s %16s %16s %16s%n", "size", "loop MB/s", "zero-copy MB/s", "chunked MB/s",
+                    "chunked x" + PARALLEL_STREAMS + " MB/s");
+            for (long sizeMB : SIZES_MB) {
+                if (sizeMB > maxMB) break;
+                File source = createSourceFile(dir, sizeMB * MB);
+                ChunkedTransfer.digestOf(source).join(); // the client hashes while waiting for /acceptfile
+                double loop = measure(source, target, Path.LOOP);
+                double zeroCopy = measure(source, target, Path.ZERO_COPY);
+                double chunked = measure(source, target, Path.CHUNKED);
+                double parallel = measure(source, target, Path.PARALLEL);
+                System.out.printf("%-10s %16.1f %16.1f %16.1f %16.1f%n", sizeMB + " MB", loop, zeroCopy, chunked, parallel);
+                source.delete();
+            }
+        } finally {
+            target.delete();
+            new File(target.getPath() + ".state").delete();
+            dir.delete();
+        }
+    }
+
+    static File createSourceFile(File dir, long size) throws IOException {
+        File file = new File(dir, "source-" + size + ".bin");
+        byte[] block = new byte[(int) Math.min(size, MB)];
+        new java.util.Random(42).nextBytes(block);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                fos.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    // One transfer over loopback; returns MB/s measured from accept to the receiver finishing its write.
+    // The JMH FileCopyBenchmark calls this too.
+    static double measure(File source, File target, Path path) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            IOException[] receiveError = new IOException[1];
+
+            File stateFile = new File(target.getPath() + ".state");
+            stateFile.delete();
+
+            boolean chunked = path == Path.CHUNKED || path == Path.PARALLEL;
+            Thread receiver = new Thread(() -> {
+                try {
+                    if (chunked) {
+                        int streams = (path == Path.PARALLEL) ? PARALLEL_STREAMS : 1;
+                        ChunkedTransfer.Manifest manifest = ChunkedTransfer.receive(
+                                () -> ChatClient.openDataChannel(address), target, stateFile, streams, ChunkedTransfer.Meter.NONE);
+                        if (!ChunkedTransfer.matchesDigest(target, manifest)) throw new IOException("SHA-256 mismatch");
+                        return;
+                    }
+                    try (SocketChannel channel = ChatClient.openDataChannel(address)) {
+                        if (path == Path.ZERO_COPY) {
+                            zeroCopyReceive(channel, target);
+                        } else {
+                            loopReceive(channel.socket().getInputStream(), target);
+                        }
+                    }
+                } catch (IOException e) {
+                    receiveError[0] = e;
+                }
+            });
+
+            long start = System.nanoTime();
+            receiver.start();
+            if (chunked) {
+                try (ChunkedTransfer.Acceptor acceptor = new ChunkedTransfer.PortAcceptor(server)) {
+                    ChunkedTransfer.serveSession(acceptor, source, 0, null, false, 15000, ChunkedTransfer.Meter.NONE, () -> { });
+                }
+            } else {
+                try (SocketChannel channel = server.accept()) {
+                    if (path == Path.ZERO_COPY) {
+                        zeroCopySend(source, channel);
+                    } else {
+                        loopSend(source, channel.socket().getOutputStream());
+                    }
+                }
+            }
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long elapsed = System.nanoTime() - start;
+
+            if (receiveError[0] != null) throw receiveError[0];
+            if (target.length() != source.length()) {
+                throw new IOException("Received " + target.length() + " of " + source.length() + " bytes");
+            }
+            return (source.length() / (double) MB) / (elapsed / 1e9);
+        }
+    }
+
+    // Streams the whole file with transferTo, which lets the kernel use sendfile instead of copying through the heap
+    private static long zeroCopySend(File file, SocketChannel socket) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = fileChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += fileChannel.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), socket);
+            }
+            return position;
+        }
+    }
+
+    // Writes everything until the sender closes, with transferFrom (splice where the kernel supports it)
+    private static long zeroCopyReceive(SocketChannel socket, File file) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long n;
+            // A blocking socket source returns 0 only at end of stream
+            while ((n = fileChannel.transferFrom(socket, position, TRANSFER_CHUNK)) > 0) {
+                position += n;
+            }
+            return position;
+        }
+    }
+
+    // The data path as it was before transferTo: a 4 KB buffer through FileInputStream
+    private static void loopSend(File file, OutputStream os) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) != -1) {
+                os.write(buffer, 0, bytesRead);
+            }
+            os.flush();
+        }
+    }
+
+    private static void loopReceive(InputStream in, File file) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                fos.write(buffer, 0, bytesRead);
+            }
+        }
+    }
+}
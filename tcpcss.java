@@ -1,231 +1,4188 @@
-import java.io.*;
-import java.net.*;
-import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-
-public class ChatServer {
-    private static final AtomicInteger counter = new AtomicInteger(0);
-    private static final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
-
-    public static void main(String[] args) throws IOException {
-        int port = 12345; // default port
-        if (args.length == 1) {
-            try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.out.println("Invalid port number. Using default port 12345.");
-            }
-        } else if (args.length > 1) {
-            System.out.println("Usage: java tcpcss.java [port]");
-            return;
-        }
-
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Server listening on port " + port);
-        System.out.println("Waiting for connections...");
-
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            ClientHandler handler = new ClientHandler(clientSocket);
-            clients.add(handler);
-            new Thread(handler).start();
-        }
-    }
-
-    public static void broadcast(String message, ClientHandler sender) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                // broadcast to all clients, including sender if sender is null (for server messages)
-                if (sender == null || client != sender) {
-                    client.sendMessage(message);
-                }
-            }
-        }
-    }
-
-    // Thread to handle each client's connection
-    static class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
-
-        ClientHandler(Socket socket) {
-            this.clientSocket = socket;
-        }
-
-        public void sendMessage(String message) {
-            if (out != null) {
-                try {
-                    out.println(message);
-                    out.flush();
-                } catch (Exception e) {
-                    System.out.println("Fail to send message to " + username + ": " + e.getMessage());
-                }
-            }
-        }
-
-        @Override
-        public void run() {
-            System.out.println("New connection, thread name is " + Thread.currentThread().getName() +
-                    ", IP is: " + clientSocket.getInetAddress().getHostAddress() +
-                    ", port: " + clientSocket.getPort());
-
-            int requestNum = counter.incrementAndGet();
-            System.out.println("Adding to list of sockets as " + requestNum);
-
-            try {
-                in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-                username = in.readLine();
-                System.out.println("[" + username + "] has joined the chat.");
-                broadcast("[" + username + "] has joined the chat.", this);
-
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equalsIgnoreCase("/quit")) {
-                        break;
-                    } else if (message.equalsIgnoreCase("/who")) {
-                        System.out.println("[" + username + "] requested online users list.");
-                        String userList = ChatServer.getUserList();
-                        System.out.println(userList);
-                        out.println(userList);
-                    } else if (message.startsWith("/sendfile")) {
-                        handleSendFile(message);
-                    } else if (message.startsWith("/acceptfile") || message.startsWith("/rejectfile")) {
-                        handleFileResponse(message);
-                    } else if (message.startsWith("/fileport")) {
-                        // Format: /fileport <recipient> <port> (Sent by sender's client)
-                        String[] parts = message.split(" ", 3);
-                        if (parts.length < 3) continue;
-
-                        String recipientName = parts[1];
-                        // Get the full message to forward
-
-                        ClientHandler recipient = findClientByName(recipientName);
-                        if (recipient != null) {
-                        // Send silently to the recipient only
-                        recipient.sendMessage(message);
-                        } else {
-                            out.println("[Server] User '" + recipientName + "' not found to relay file port.");
-                        }
-                    } else if (message.startsWith("/filecomplete")) {
-                        String fileMsg = message.substring("/filecomplete ".length());
-                        System.out.println(fileMsg); // print on server console
-                        broadcast(fileMsg, null);    // broadcast to all clients
-                    } else {
-                        System.out.println("[" + username + "] " + message);
-                        broadcast("[" + username + "] " + message, this);
-                    }
-                }
-            } catch (IOException e) {
-                // Log critical errors (unlike connection reset) but let finally block handle cleanup
-                if (!e.getMessage().contains("Connection reset")) {
-                     System.out.println("Error for " + username + ": " + e.getMessage());
-                }
-            } finally {
-                System.out.println("[" + username + "] has left the chat.");
-                clients.remove(this);
-                broadcast("[" + username + "] has left the chat.", this);
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing socket: " + e.getMessage());
-                }
-            }
-        }
-
-        private void handleSendFile(String message) {
-            String[] parts = message.split(" ", 4);
-            if (parts.length < 3) {
-                out.println("Usage: /sendfile <recipient> <filename>");
-                return;
-            }
-
-            String recipientName = parts[1];
-            String fileName = parts[2];
-            String sizeKB = (parts.length >= 4) ? parts[3] : "unknown size";
-
-            ClientHandler receiver = findClientByName(recipientName);
-            if (receiver == null) {
-                out.println("[Server] User '" + recipientName + "' not found.");
-                return;
-            }
-
-            // 1. Server broadcasts the initiation to ALL clients
-            String publicMsg = "[File transfer initiated from " + username + " to " + recipientName
-                    + " " + fileName + " (" + sizeKB + ")]";
-            System.out.println(publicMsg); // server log
-            broadcast(publicMsg, null);     // broadcast to all
-
-            // 2. Server sends a PRIVATE command to the RECIPIENT to prompt acceptance
-            // Format: /filerequest <sender> <filename> <size>
-            String privateMsg = "/filerequest " + username + " " + fileName + " " + sizeKB;
-            receiver.sendMessage(privateMsg);
-        }
-
-        private void handleFileResponse(String message) {
-            String[] parts = message.split(" ", 3);
-            if (parts.length < 2) {
-                // Log the incomplete command and send a notification back to the client
-                out.println("[Server] Command incomplete. Usage: /acceptfile <sendername> or /rejectfile <sendername>");
-                return; 
-    }
-
-            String command = parts[0];
-            String senderName = parts[1];
-            String fileName = (parts.length == 3) ? parts[2] : "unknown_file"; 
-
-            ClientHandler sender = findClientByName(senderName);
-            if (sender == null) {
-                out.println("[Server] User '" + senderName + "' not found.");
-                return;
-            }
-
-            if (command.startsWith("/acceptfile")) {
-                System.out.println("[File transfer accepted from " + senderName + " to " + username + "]");
-                broadcast("[File transfer accepted from " + senderName + " to " + username + "]", null);
-    
-                // Send PRIVATE command to the SENDER's client to trigger the file transfer thread
-                // Format: /fileaccepted <recipient> <filename>
-                sender.sendMessage("/fileaccepted " + username + " " + fileName);
-                
-            } else if (command.startsWith("/rejectfile")) {
-                System.out.println("[" + username + " rejected file transfer from " + senderName + "]");
-                // Send rejection privately to the SENDER
-                sender.sendMessage("[File transfer rejected by " + username + "]");
-                // Optionally broadcast a rejection notice to all
-                broadcast("[File transfer rejected by " + username + " for a file from " + senderName + "]", null);
-            }
-        }
-
-        private ClientHandler findClientByName(String name) {
-            synchronized (clients) {
-                for (ClientHandler c : clients) {
-                    if (c.username != null && c.username.equalsIgnoreCase(name)) {
-                        return c;
-                    }
-                }
-            }
-            return null;
-        }
-    }
-
-    public static String getUserList() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[Online users: ");
-        synchronized (clients) {
-            boolean first = true;
-            for (ClientHandler client : clients) {
-                if (client.username != null) {
-                    if (!first) sb.append(", ");
-                    sb.append(client.username);
-                    first = false;
-                }
-            }
-        }
-        sb.append("]");
-        return sb.toString();
-    }
-}
\ No newline at end of file
+package chat;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+
+class ChatServer {
+    private static final AtomicInteger counter = new AtomicInteger(0);
+    private static final AtomicInteger connections = new AtomicInteger(0);
+
+    // Logged-in users keyed by lower-cased username. Lookups are O(1); iteration goes through
+    // an immutable Membership snapshot that is only rebuilt after a join or leave.
+    private static final ConcurrentHashMap<String, ClientHandler> users = new ConcurrentHashMap<>();
+    private static final AtomicLong membershipVersion = new AtomicLong(0);
+    private static final AtomicLong joinSequence = new AtomicLong(0);
+    private static volatile Membership membership = new Membership(0, new ClientHandler[0]);
+
+    // Chat rooms keyed by lower-cased name. Plain chat lines only fan out to the sender's active room;
+    // every user starts in LOBBY, so a server nobody uses /join on behaves as before.
+    private static final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    static final String LOBBY = "lobby";
+    private static final int MAX_ROOM_NAME = 32;
+    private static final int DEFAULT_HISTORY_PAGE = 20;
+    private static final int MAX_HISTORY_PAGE = 500;
+
+    // Server options (set from the command line)
+    private static String mode = "thread"; // thread = one Thread per client, virtual = one virtual thread, nio = selector loops
+    private static int selectorCount = Runtime.getRuntime().availableProcessors();
+    private static int statsInterval = 0;  // seconds between [Stats] lines, 0 = off
+    private static int queueCapacity = 1024; // outbound messages buffered per client
+    private static String slowConsumerPolicy = "disconnect"; // drop-oldest, disconnect or block
+    private static long blockTimeoutMillis = 5000; // how long "block" waits for queue space before disconnecting
+    private static long writeDelayMillis = 0;  // how long a client's first queued line waits for more to share its write
+    private static int writeBatchBytes = 64 * 1024; // queued bytes that trigger a write at once, and the most per write
+    private static boolean tcpNoDelay = false; // TCP_NODELAY on client sockets
+    private static int relayPort = 0;         // data port for server-relayed file transfers, 0 = off
+    private static long relayRateKB = 0;      // KB/s across all relayed transfers, 0 = no cap
+    private static long relayUserRateKB = 0;  // KB/s per user (as sender or receiver), 0 = no cap
+    private static int metricsPort = 0;       // loopback HTTP port for Prometheus metrics, 0 = off
+    private static int historySize = 50;      // recent lines kept in memory per room and sent to joiners, 0 = off
+    private static String historyDir;         // directory for the persistent message log, null = memory only
+    private static int maxRooms = 10000;      // rooms the server holds at once; /join of a new one fails past it
+    private static int maxJoinedRooms = 50;   // rooms one user may be in at once
+    private static int historyRooms = 1000;   // rooms whose recent lines are kept in memory; the least recently used go first
+    private static int nodePort = 0;          // port other server nodes connect to, 0 = no cluster
+    private static String nodeId;             // this node's name in the cluster, default host:node-port
+    private static String peerList = "";      // comma-separated host:node-port of the other nodes
+    private static String nodeBind = "127.0.0.1"; // address --node-port listens on
+    private static String nodeSecretFile;     // file holding the secret every node of the cluster shares
+    private static boolean tls = false;       // TLS on client connections, keys from -Djavax.net.ssl.keyStore
+    private static boolean compress = true;   // grant binary clients that ask a deflated stream (never over TLS)
+    private static int pingInterval = 0;      // seconds of silence before the server sends /ping, 0 = never
+    private static int idleTimeout = 0;       // seconds of silence before a connection is closed, 0 = never
+    // Commands per second each user may send, by CommandLimits kind (chat, who, sendfile); 0 = no limit
+    private static final double[] commandRates = new double[3];
+
+    // Relays file data between peers that cannot reach each other; null unless --relay-port is set
+    private static Relay relay;
+
+    // The other server nodes sharing this chat; null unless --node-port is set
+    private static Cluster cluster;
+
+    // Server-side TLS for client connections; null unless --tls=on
+    private static SSLContext tlsContext;
+    private static int tlsPacketSize;  // largest TLS record, the most one wrap can produce
+
+    // Drains per-client outbound queues to blocking sockets (thread and virtual modes)
+    private static Executor writers;
+
+    // Slow-consumer counters
+    private static final AtomicLong droppedMessages = new AtomicLong();
+    private static final AtomicLong slowConsumerDisconnects = new AtomicLong();
+
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int MAX_GATHER = 256; // buffers per gathering write in nio mode
+
+    // ClientHandler.writeState
+    private static final int IDLE = 0;
+    private static final int DELAYED = 1;
+    private static final int SCHEDULED = 2;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int TLS_SESSION_CACHE = 20_000;     // sessions kept for resumption
+    private static final int TLS_SESSION_SECONDS = 24 * 60 * 60;
+    private static final int TLS_BUFFER_RECORDS = 4;          // TLS records per pooled ciphertext buffer
+    private static final int MAX_POOLED_TLS_BUFFERS = 64;     // per selector loop
+    private static final double RATE_BURST_SECONDS = 2;      // a rate-limited user may send this many seconds' worth at once
+
+    public static void main(String[] args) throws IOException {
+        int port = 12345; // default port
+        boolean portSet = false;
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                if (!parseOption(arg)) {
+                    printUsage();
+                    return;
+                }
+            } else if (portSet) {
+                printUsage();
+                return;
+            } else {
+                portSet = true;
+                try {
+                    port = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid port number. Using default port 12345.");
+                }
+            }
+        }
+
+        // In nio mode the sender is a selector loop: waiting there stalls every connection on the loop, and
+        // never ends if the slow client is on the same loop, as only that loop drains its queue
+        if (slowConsumerPolicy.equals("block") && mode.equals("nio")) {
+            System.out.println("--slow-consumer=block needs --mode=thread or --mode=virtual");
+            return;
+        }
+
+        if (tls) {
+            if (System.getProperty("javax.net.ssl.keyStore") == null) {
+                System.out.println("--tls=on needs -Djavax.net.ssl.keyStore=<file> and -Djavax.net.ssl.keyStorePassword=<password>");
+                return;
+            }
+            try {
+                tlsContext = SSLContext.getDefault();
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available: " + e.getMessage(), e);
+            }
+            // Reconnecting clients resume a cached session (or present a TLS 1.3 ticket) instead of
+            // paying for a full handshake
+            tlsContext.getServerSessionContext().setSessionCacheSize(TLS_SESSION_CACHE);
+            tlsContext.getServerSessionContext().setSessionTimeout(TLS_SESSION_SECONDS);
+            tlsPacketSize = tlsContext.createSSLEngine().getSession().getPacketBufferSize();
+        }
+
+        if (relayPort > 0) {
+            relay = new Relay(relayPort, relayRateKB * 1024, relayUserRateKB * 1024);
+            new Thread(relay, "relay").start();
+            Log.info("Relaying file transfers on port " + relayPort);
+        }
+
+        if (statsInterval > 0) {
+            startStatsReporter();
+        }
+
+        if (writeDelayMillis > 0) {
+            Flusher.start(writeDelayMillis);
+        }
+
+        if (pingInterval > 0 || idleTimeout > 0) {
+            TimerWheel.start();
+        }
+
+        if (historyDir != null) {
+            History.log = MessageLog.open(new File(historyDir));
+            Log.info("Message log in " + historyDir + ": " + History.log.replayed + " lines replayed, next is #"
+                    + (History.lastSequence() + 1));
+        }
+
+        if (nodePort > 0) {
+            if (nodeSecretFile == null) {
+                System.out.println("--node-port needs --node-secret-file=<file> holding a secret shared by every node");
+                return;
+            }
+            byte[] secret = new String(Files.readAllBytes(Paths.get(nodeSecretFile)), StandardCharsets.UTF_8).trim()
+                    .getBytes(StandardCharsets.UTF_8);
+            if (secret.length == 0) {
+                System.out.println(nodeSecretFile + " is empty");
+                return;
+            }
+            cluster = new Cluster(nodeId != null ? nodeId : defaultNodeId(), nodeBind, nodePort, secret, parsePeers(peerList));
+            cluster.start();
+            Log.info("Cluster node " + cluster.nodeId + " on " + nodeBind + ":" + nodePort + ", peers: "
+                    + (peerList.isEmpty() ? "none" : peerList));
+        }
+
+        if (metricsPort > 0) {
+            Metrics.start(metricsPort);
+            Log.info("Serving metrics on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+
+        if (mode.equals("nio")) {
+            runNio(port);
+            return;
+        }
+
+        ExecutorService executor = null;
+        if (mode.equals("virtual")) {
+            executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                Log.info("Virtual threads need Java 21 or newer. Using one thread per client.");
+                mode = "thread";
+            }
+        }
+
+        writers = (executor != null) ? executor : Executors.newCachedThreadPool(task -> {
+            Thread writer = new Thread(task, "writer");
+            writer.setDaemon(true);
+            return writer;
+        });
+
+        ServerSocket serverSocket = new ServerSocket(port);
+        Log.info("Server listening on port " + port + (executor != null ? " (virtual threads)" : "") + (tls ? " (TLS)" : ""));
+        Log.info("Waiting for connections...");
+
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            if (tlsContext != null) {
+                // The handshake itself runs on the handler's thread
+                SSLSocket secure = (SSLSocket) tlsContext.getSocketFactory().createSocket(clientSocket, null, clientSocket.getPort(), true);
+                secure.setUseClientMode(false);
+                clientSocket = secure;
+            }
+            ClientHandler handler = new ClientHandler(clientSocket);
+            connections.incrementAndGet();
+            TimerWheel.add(handler);
+            if (executor != null) {
+                executor.execute(handler);
+            } else {
+                new Thread(handler).start();
+            }
+        }
+    }
+
+    // Relay tokens and cluster challenges
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // For benchmarks that run the server in-process: queued lines are written on the enqueuing thread
+    static void useInlineWriters() {
+        writers = Runnable::run;
+    }
+
+    // Looked up reflectively so the server still runs on JDKs without virtual threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + nodePort;
+        } catch (UnknownHostException e) {
+            return "localhost:" + nodePort;
+        }
+    }
+
+    // "host:port,host:port"
+    private static List<InetSocketAddress> parsePeers(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : list.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+
+    // Prints connection count, platform threads and memory so the server modes can be compared side by side
+    private static void startStatsReporter() {
+        Thread reporter = new Thread(() -> {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            while (true) {
+                try {
+                    Thread.sleep(statsInterval * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long heapMB = memory.getHeapMemoryUsage().getUsed() / (1024 * 1024);
+                long nonHeapMB = memory.getNonHeapMemoryUsage().getUsed() / (1024 * 1024);
+                int queued = 0;
+                int maxQueue = 0;
+                for (ClientHandler client : membership().members) {
+                    int depth = client.outbound.size();
+                    queued += depth;
+                    maxQueue = Math.max(maxQueue, depth);
+                }
+                Log.info("[Stats] mode=" + mode + " clients=" + connections.get() + " users=" + users.size()
+                        + " platformThreads=" + threads.getThreadCount()
+                        + " heapUsedMB=" + heapMB + " nonHeapUsedMB=" + nonHeapMB
+                        + " rssMB=" + residentSetMB()
+                        + " queued=" + queued + " maxQueueDepth=" + maxQueue
+                        + " dropped=" + droppedMessages.get() + " slowDisconnects=" + slowConsumerDisconnects.get()
+                        + " broadcastP99us=" + Metrics.broadcastNanos.percentile(0.99) / 1000
+                        + " logDropped=" + Log.dropped.sum()
+                        + " reaped=" + Metrics.reaped.sum() + " throttled=" + Metrics.throttledConnections.sum()
+                        + (relay == null ? "" : " relayPairs=" + relay.activePairs.get() + " relayPairsTotal=" + relay.pairsTotal.get()
+                                + " relayedMB=" + relay.relayedBytes.get() / (1024 * 1024)));
+            }
+        }, "stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // Resident set size from /proc (includes thread stacks, which the heap numbers do not); -1 elsewhere
+    private static long residentSetMB() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java tcpcss.java [port] [--mode=thread|virtual|nio] [--selectors=N] [--stats=seconds]");
+        System.out.println("       [--queue=N] [--slow-consumer=drop-oldest|disconnect|block] [--block-timeout=ms]");
+        System.out.println("       [--write-delay=ms] [--write-batch=bytes] [--tcp-nodelay=on|off]");
+        System.out.println("       [--relay-port=N] [--relay-rate=KB/s] [--relay-user-rate=KB/s]");
+        System.out.println("       [--metrics-port=N] [--log-level=debug|info|warn|off] [--history=N] [--history-dir=path] [--history-rooms=N]");
+        System.out.println("       [--max-rooms=N] [--max-joined-rooms=N]");
+        System.out.println("       [--node-port=N] [--node-id=name] [--peers=host:port,...] [--node-bind=address] [--node-secret-file=path]");
+        System.out.println("       [--tls=on|off] [--compress=on|off]");
+        System.out.println("       [--ping-interval=seconds] [--idle-timeout=seconds] [--chat-rate=N/s] [--who-rate=N/s] [--sendfile-rate=N/s]");
+    }
+
+    // Options are --name=value; returns false for anything unknown or malformed
+    private static boolean parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) return false;
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        try {
+            switch (name) {
+                case "mode":
+                    if (!value.equals("thread") && !value.equals("virtual") && !value.equals("nio")) return false;
+                    mode = value;
+                    return true;
+                case "selectors":
+                    selectorCount = Integer.parseInt(value);
+                    return selectorCount > 0;
+                case "stats":
+                    statsInterval = Integer.parseInt(value);
+                    return statsInterval >= 0;
+                case "queue":
+                    queueCapacity = Integer.parseInt(value);
+                    return queueCapacity > 0;
+                case "slow-consumer":
+                    if (!value.equals("drop-oldest") && !value.equals("disconnect") && !value.equals("block")) return false;
+                    slowConsumerPolicy = value;
+                    return true;
+                case "block-timeout":
+                    blockTimeoutMillis = Long.parseLong(value);
+                    return blockTimeoutMillis >= 0;
+                case "write-delay":
+                    writeDelayMillis = Long.parseLong(value);
+                    return writeDelayMillis >= 0;
+                case "write-batch":
+                    writeBatchBytes = Integer.parseInt(value);
+                    return writeBatchBytes >= 1024;
+                case "tcp-nodelay":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    tcpNoDelay = value.equals("on");
+                    return true;
+                case "relay-port":
+                    relayPort = Integer.parseInt(value);
+                    return relayPort >= 0 && relayPort <= 65535;
+                case "relay-rate":
+                    relayRateKB = Long.parseLong(value);
+                    return relayRateKB >= 0;
+                case "relay-user-rate":
+                    relayUserRateKB = Long.parseLong(value);
+                    return relayUserRateKB >= 0;
+                case "metrics-port":
+                    metricsPort = Integer.parseInt(value);
+                    return metricsPort >= 0 && metricsPort <= 65535;
+                case "history":
+                    historySize = Integer.parseInt(value);
+                    return historySize >= 0;
+                case "history-dir":
+                    historyDir = value;
+                    return !value.isEmpty();
+                case "max-rooms":
+                    maxRooms = Integer.parseInt(value);
+                    return maxRooms > 0;
+                case "max-joined-rooms":
+                    maxJoinedRooms = Integer.parseInt(value);
+                    return maxJoinedRooms > 0;
+                case "history-rooms":
+                    historyRooms = Integer.parseInt(value);
+                    return historyRooms > 0;
+                case "node-port":
+                    nodePort = Integer.parseInt(value);
+                    return nodePort >= 0 && nodePort <= 65535;
+                case "node-id":
+                    nodeId = value;
+                    return !value.isEmpty();
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        int colon = peer.trim().lastIndexOf(':');
+                        if (colon <= 0) return false;
+                        Integer.parseInt(peer.trim().substring(colon + 1));
+                    }
+                    peerList = value;
+                    return true;
+                case "node-bind":
+                    nodeBind = value;
+                    return !value.isEmpty();
+                case "node-secret-file":
+                    nodeSecretFile = value;
+                    return !value.isEmpty();
+                case "tls":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    tls = value.equals("on");
+                    return true;
+                case "compress":
+                    if (!value.equals("on") && !value.equals("off")) return false;
+                    compress = value.equals("on");
+                    return true;
+                case "ping-interval":
+                    pingInterval = Integer.parseInt(value);
+                    return pingInterval >= 0;
+                case "idle-timeout":
+                    idleTimeout = Integer.parseInt(value);
+                    return idleTimeout >= 0;
+                case "chat-rate":
+                    commandRates[CommandLimits.CHAT] = Double.parseDouble(value);
+                    return commandRates[CommandLimits.CHAT] >= 0;
+                case "who-rate":
+                    commandRates[CommandLimits.WHO] = Double.parseDouble(value);
+                    return commandRates[CommandLimits.WHO] >= 0;
+                case "sendfile-rate":
+                    commandRates[CommandLimits.SENDFILE] = Double.parseDouble(value);
+                    return commandRates[CommandLimits.SENDFILE] >= 0;
+                case "log-level": {
+                    int level = Arrays.asList(Log.LEVELS).indexOf(value);
+                    if (level < 0) return false;
+                    Log.setLevel(level);
+                    return true;
+                }
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // NIO mode: a blocking acceptor hands each channel to one of a few selector loops (one per core)
+    private static void runNio(int port) throws IOException {
+        SelectorLoop[] loops = new SelectorLoop[selectorCount];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop();
+            new Thread(loops[i], "selector-" + i).start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        Log.info("Server listening on port " + port + " (nio, " + loops.length + " selector loops)" + (tls ? " (TLS)" : ""));
+        Log.info("Waiting for connections...");
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    static String userKey(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+
+    // Claims the username; false if someone already holds it (names are case-insensitive). In a cluster,
+    // a name two nodes hand out at the same moment is only caught on the node that hears of the other second.
+    static boolean register(ClientHandler handler) {
+        handler.joinOrder = joinSequence.incrementAndGet();
+        String key = userKey(handler.username);
+        if ((cluster != null && cluster.findUser(key) != null) || users.putIfAbsent(key, handler) != null) {
+            return false;
+        }
+        membershipVersion.incrementAndGet();
+        if (cluster != null) cluster.userJoined(handler.username);
+        return true;
+    }
+
+    static void unregister(ClientHandler handler) {
+        if (users.remove(userKey(handler.username), handler)) {
+            membershipVersion.incrementAndGet();
+            if (cluster != null) cluster.userLeft(handler.username);
+        }
+    }
+
+    static ClientHandler findClientByName(String name) {
+        return users.get(userKey(name));
+    }
+
+    // A user on this node or, in a cluster, on whichever node they are logged in to
+    static Recipient findRecipient(String name) {
+        ClientHandler local = findClientByName(name);
+        if (local != null || cluster == null) return local;
+        return cluster.findUser(userKey(name));
+    }
+
+    // Someone a command can be addressed to: a ClientHandler here, or a user on another node
+    interface Recipient {
+        String username();
+
+        void send(Command command);
+
+        void sendMessage(String message);
+    }
+
+    // Current members in join order. No lock is taken: a stale snapshot is replaced by whichever
+    // reader first notices the version moved, and a join racing with the rebuild just bumps it again.
+    static Membership membership() {
+        Membership current = membership;
+        long version = membershipVersion.get();
+        if (current.version == version) {
+            return current;
+        }
+        ClientHandler[] members = users.values().toArray(new ClientHandler[0]);
+        Arrays.sort(members, Comparator.comparingLong(c -> c.joinOrder));
+        Membership rebuilt = new Membership(version, members);
+        membership = rebuilt;
+        return rebuilt;
+    }
+
+    static final class Membership {
+        final long version;
+        final ClientHandler[] members;
+        private volatile String userList; // cached /who reply
+
+        Membership(long version, ClientHandler[] members) {
+            this.version = version;
+            this.members = members;
+        }
+
+        String userList() {
+            String list = userList;
+            if (list == null) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("[Online users: ");
+                for (int i = 0; i < members.length; i++) {
+                    if (i > 0) sb.append(", ");
+                    sb.append(members[i].username);
+                }
+                sb.append("]");
+                list = sb.toString();
+                userList = list;
+            }
+            return list;
+        }
+    }
+
+    static String roomKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Room names are one word of up to MAX_ROOM_NAME characters; a leading '#' is dropped
+    static String roomName(String text) {
+        if (text == null) return null;
+        String name = text.startsWith("#") ? text.substring(1) : text;
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME || name.indexOf(' ') >= 0) return null;
+        return name;
+    }
+
+    // Adds handler to the room, creating it if needed; null if that would take the server past --max-rooms.
+    // The lobby is always there to log in to.
+    static Room joinRoom(String name, ClientHandler handler) {
+        while (true) {
+            Room room = rooms.computeIfAbsent(roomKey(name),
+                    k -> (rooms.size() >= maxRooms && !k.equals(LOBBY)) ? null : new Room(name));
+            if (room == null) return null;
+            if (room.add(handler)) return room;
+            // The last member left while we were looking it up; the closed room is already out of the map
+        }
+    }
+
+    static Room findRoom(String name) {
+        return rooms.get(roomKey(name));
+    }
+
+    // "[Rooms: dev (3 users, joined), lobby (12 users)]"
+    static String roomList(ClientHandler handler) {
+        List<Room> sorted = new ArrayList<>(rooms.values());
+        sorted.sort(Comparator.comparing(room -> roomKey(room.name)));
+        StringBuilder sb = new StringBuilder("[Rooms: ");
+        for (int i = 0; i < sorted.size(); i++) {
+            Room room = sorted.get(i);
+            int size = room.members().length;
+            if (i > 0) sb.append(", ");
+            sb.append(room.name).append(" (").append(size).append(size == 1 ? " user" : " users");
+            if (room.contains(handler)) sb.append(", joined");
+            sb.append(')');
+        }
+        return sb.append(']').toString();
+    }
+
+    // A chat room. Members are a copy-on-write array: joins and leaves copy it under the room's lock,
+    // and a fan-out reads the current array without locking, so chat in a room costs O(room size).
+    static final class Room {
+        final String name;
+        private volatile ClientHandler[] members = new ClientHandler[0];
+        private boolean closed; // emptied and removed from rooms; guarded by this
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        ClientHandler[] members() {
+            return members;
+        }
+
+        boolean contains(ClientHandler handler) {
+            for (ClientHandler member : members) {
+                if (member == handler) return true;
+            }
+            return false;
+        }
+
+        // False if the room was closed in the meantime
+        synchronized boolean add(ClientHandler handler) {
+            if (closed) return false;
+            if (contains(handler)) return true;
+            ClientHandler[] current = members;
+            ClientHandler[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = handler;
+            members = grown;
+            return true;
+        }
+
+        synchronized void remove(ClientHandler handler) {
+            ClientHandler[] current = members;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != handler) continue;
+                ClientHandler[] shrunk = new ClientHandler[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, current.length - i - 1);
+                members = shrunk;
+                break;
+            }
+            if (members.length == 0 && !closed) {
+                closed = true;
+                rooms.remove(roomKey(name), this);
+            }
+        }
+
+        // Room notices; members on other nodes get them too
+        void send(String message, ClientHandler sender) {
+            fanOut(members, message, sender);
+            if (cluster != null) cluster.forward(Protocol.NODE_BROADCAST, roomKey(name), message);
+        }
+
+        // A chat line: like a notice, but kept in the room's history on every node
+        void chat(String line, ClientHandler sender) {
+            fanOut(members, line, sender);
+            String key = roomKey(name);
+            History.record(key, line);
+            if (cluster != null) cluster.forward(Protocol.NODE_CHAT, key, line);
+        }
+    }
+
+    // To every user in the cluster but sender
+    public static void broadcast(String message, ClientHandler sender) {
+        fanOut(membership().members, message, sender);
+        if (cluster != null) cluster.forward(Protocol.NODE_BROADCAST, "", message);
+    }
+
+    // Queues message for every member except sender (everyone if sender is null)
+    static void fanOut(ClientHandler[] members, String message, ClientHandler sender) {
+        long start = System.nanoTime();
+        int recipients = 0;
+        // Encoded at most once per wire format; every recipient queues the same bytes
+        byte[] line = null;
+        byte[] frame = null;
+        for (ClientHandler client : members) {
+            // broadcast to all clients, including sender if sender is null (for server messages)
+            if (sender == null || client != sender) {
+                if (client.binary) {
+                    if (frame == null) frame = Protocol.messageFrame(message);
+                    client.enqueue(frame);
+                } else {
+                    if (line == null) line = encode(message);
+                    client.enqueue(line);
+                }
+                recipients++;
+            }
+        }
+        Metrics.broadcastRecipients.add(recipients);
+        Metrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+
+    static byte[] encode(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // File commands may carry a "#..." tag (transfer id, stream count) right after the user name;
+    // the server only passes it along. Returns {tag, rest}, with an empty tag when there is none.
+    static String[] splitTag(String text) {
+        if (!text.startsWith("#")) return new String[] {"", text};
+        int space = text.indexOf(' ');
+        return (space < 0) ? new String[] {text, ""} : new String[] {text.substring(0, space), text.substring(space + 1)};
+    }
+
+    // A receiver asks for a relayed transfer with a bare "relay" entry in its tag. When the relay is on,
+    // the entry becomes "relay=<token>:rport=<port>" for the sender; otherwise it is dropped and the
+    // peers fall back to a direct connection. Each client dials the relay on its own server, so a sender
+    // logged in to another cluster node could never meet the receiver there; it gets the fallback too.
+    static String withRelayToken(String tag, Recipient sender, String receiverName) {
+        if (tag.isEmpty()) return tag;
+        StringBuilder sb = new StringBuilder();
+        for (String entry : tag.substring(1).split(":")) {
+            if (entry.equals("relay")) {
+                if (relay == null || sender instanceof Cluster.RemoteUser) continue;
+                entry = "relay=" + relay.open(sender.username(), receiverName) + ":rport=" + relay.port;
+            }
+            sb.append(sb.length() == 0 ? "#" : ":").append(entry);
+        }
+        return sb.toString();
+    }
+
+    // Wire formats. Text clients send their username and then one command per line. A binary client
+    // sends HANDSHAKE_MAGIC and a version byte instead (a username line can never start with a zero
+    // byte); the server answers with the same two bytes for the version it speaks, then both sides use
+    //   frame = int length of the rest | opcode byte | fields
+    //   field = varint byte count | UTF-8 bytes
+    // Each opcode carries a fixed subset of the fields user, tag, text and extra, always in that order,
+    // so a field may contain spaces. Both formats are parsed into the same Command. A client asking for
+    // VERSION_DEFLATE gets the same frames, but everything the server sends after its two handshake bytes
+    // is one zlib stream, sync-flushed after each batch of writes; the answer is VERSION when the server
+    // declines, which it always does over TLS.
+    static final class Protocol {
+        static final byte HANDSHAKE_MAGIC = 0;
+        static final byte VERSION = 1;
+        static final byte VERSION_DEFLATE = 2;
+        static final int MAX_FRAME = 1024 * 1024;
+        static final int MAX_LINE = MAX_FRAME; // longest text line, in bytes without the newline
+
+        // client -> server
+        static final byte LOGIN = 0x01;
+        static final byte CHAT = 0x02;
+        static final byte WHO = 0x03;
+        static final byte QUIT = 0x04;
+        static final byte SENDFILE = 0x05;
+        static final byte ACCEPTFILE = 0x06;
+        static final byte REJECTFILE = 0x07;
+        static final byte FILEPORT = 0x08;    // also server -> client, naming the sender
+        static final byte FILECOMPLETE = 0x09;
+        static final byte JOIN = 0x0A;
+        static final byte LEAVE = 0x0B;
+        static final byte ROOMS = 0x0C;
+        static final byte MSG = 0x0D;
+        static final byte HISTORY = 0x0E;
+        static final byte PONG = 0x0F;        // the answer to PING
+        // server -> client
+        static final byte MESSAGE = 0x10;
+        static final byte FILEREQUEST = 0x11;
+        static final byte FILEACCEPTED = 0x12;
+        static final byte FILEREJECTED = 0x13;
+        static final byte PING = 0x14;        // sent to a connection that has gone quiet (--ping-interval)
+        // node -> node (see Cluster); a client sending one is disconnected like for any other unknown command
+        static final byte NODE_HELLO = 0x18;
+        static final byte NODE_JOINED = 0x19;
+        static final byte NODE_LEFT = 0x1A;
+        static final byte NODE_BROADCAST = 0x1B;
+        static final byte NODE_CHAT = 0x1C;
+        static final byte NODE_TO = 0x1D;
+
+        private static final int USER = 1;
+        private static final int TAG = 2;
+        private static final int TEXT = 4;
+        private static final int EXTRA = 8;
+        private static final int UNKNOWN = -1;
+        private static final int[] FIELDS = new int[0x20];
+
+        static {
+            Arrays.fill(FIELDS, UNKNOWN);
+            FIELDS[LOGIN] = TEXT;
+            FIELDS[CHAT] = TEXT;
+            FIELDS[WHO] = 0;
+            FIELDS[QUIT] = 0;
+            FIELDS[SENDFILE] = USER | TAG | TEXT | EXTRA;
+            FIELDS[ACCEPTFILE] = USER | TAG | TEXT;
+            FIELDS[REJECTFILE] = USER | TAG;
+            FIELDS[FILEPORT] = USER | TAG | EXTRA;
+            FIELDS[FILECOMPLETE] = TAG | TEXT;
+            FIELDS[JOIN] = TEXT;
+            FIELDS[LEAVE] = TEXT;
+            FIELDS[ROOMS] = 0;
+            FIELDS[MSG] = USER | TEXT;
+            FIELDS[HISTORY] = TEXT;
+            FIELDS[PONG] = 0;
+            FIELDS[NODE_HELLO] = TAG | TEXT | EXTRA;
+            FIELDS[NODE_JOINED] = USER;
+            FIELDS[NODE_LEFT] = USER;
+            FIELDS[NODE_BROADCAST] = TAG | TEXT;
+            FIELDS[NODE_CHAT] = TAG | TEXT;
+            FIELDS[NODE_TO] = USER;
+            FIELDS[MESSAGE] = TEXT;
+            FIELDS[FILEREQUEST] = USER | TAG | TEXT | EXTRA;
+            FIELDS[FILEACCEPTED] = USER | TAG | TEXT;
+            FIELDS[FILEREJECTED] = USER | TAG;
+            FIELDS[PING] = 0;
+        }
+
+        // Parses one text line from a client that has already logged in. Mirrors the original
+        // startsWith/split rules, so text clients see no change.
+        static Command parseLine(String line) {
+            if (line.equalsIgnoreCase("/quit")) return new Command(QUIT, null, "", null, null);
+            if (line.equalsIgnoreCase("/who")) return new Command(WHO, null, "", null, null);
+            if (line.equalsIgnoreCase("/rooms")) return new Command(ROOMS, null, "", null, null);
+            if (line.equals("/pong")) return new Command(PONG, null, "", null, null);
+            if (line.startsWith("/join ") || line.equals("/join") || line.startsWith("/leave ") || line.equals("/leave")) {
+                // /join <room>, /leave [room]
+                int space = line.indexOf(' ');
+                String room = (space < 0) ? "" : line.substring(space + 1).trim();
+                return new Command(line.startsWith("/join") ? JOIN : LEAVE, null, "", room.isEmpty() ? null : room, null);
+            }
+            if (line.startsWith("/history ") || line.equals("/history")) {
+                // /history [n]
+                String count = line.substring("/history".length()).trim();
+                return new Command(HISTORY, null, "", count.isEmpty() ? null : count, null);
+            }
+            if (line.startsWith("/msg ")) {
+                // /msg <user> <text>
+                String[] parts = line.split(" ", 3);
+                return new Command(MSG, parts[1].isEmpty() ? null : parts[1], "", (parts.length == 3 && !parts[2].isEmpty()) ? parts[2] : null, null);
+            }
+            if (line.startsWith("/sendfile")) {
+                // /sendfile <recipient> [#tag] <filename> [size]
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 3) return new Command(SENDFILE, null, "", null, null);
+                String[] tagged = splitTag(parts[2]);
+                String[] rest = tagged[1].split(" ", 2);
+                return new Command(SENDFILE, parts[1], tagged[0], rest[0].isEmpty() ? null : rest[0],
+                        (rest.length == 2) ? rest[1] : null);
+            }
+            if (line.startsWith("/acceptfile") || line.startsWith("/rejectfile")) {
+                // /acceptfile <sender> [#tag] <filename>, /rejectfile <sender> [#tag]
+                String[] parts = line.split(" ", 3);
+                byte op = line.startsWith("/acceptfile") ? ACCEPTFILE : REJECTFILE;
+                if (parts.length < 2) return new Command(op, null, "", null, null);
+                String[] tagged = (parts.length == 3) ? splitTag(parts[2]) : new String[] {"", null};
+                return new Command(op, parts[1], tagged[0], tagged[1], null);
+            }
+            if (line.startsWith("/fileport")) {
+                // /fileport <recipient> [#tag] <port> [streams]
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 3) return new Command(FILEPORT, null, "", null, null);
+                String[] tagged = splitTag(parts[2]);
+                return new Command(FILEPORT, parts[1], tagged[0], null, tagged[1]);
+            }
+            if (line.startsWith("/filecomplete")) {
+                // /filecomplete [#tag] <message>
+                String rest = (line.length() > "/filecomplete ".length()) ? line.substring("/filecomplete ".length()) : "";
+                String[] tagged = splitTag(rest);
+                return new Command(FILECOMPLETE, null, tagged[0], tagged[1], null);
+            }
+            return new Command(CHAT, null, "", line, null);
+        }
+
+        // The text line a text client expects for a server -> client command
+        static String toLine(Command command) {
+            String tag = command.tag.isEmpty() ? "" : command.tag + " ";
+            switch (command.op) {
+                case FILEREQUEST:
+                    return "/filerequest " + command.user + " " + tag + command.text + " " + command.extra;
+                case FILEACCEPTED:
+                    return "/fileaccepted " + command.user + " " + tag + command.text;
+                case FILEPORT:
+                    return "/fileport " + command.user + " " + tag + command.extra;
+                case FILEREJECTED:
+                    return "/filerejected " + command.user + " " + command.tag;
+                case PING:
+                    return "/ping";
+                default:
+                    return command.text;
+            }
+        }
+
+        static byte[] messageFrame(String text) {
+            return encode(new Command(MESSAGE, null, "", text, null));
+        }
+
+        static byte[] encode(Command command) {
+            int fields = FIELDS[command.op];
+            byte[][] values = new byte[4][];
+            int length = 1;
+            String[] source = {command.user, command.tag, command.text, command.extra};
+            for (int i = 0; i < 4; i++) {
+                if ((fields & (1 << i)) == 0) continue;
+                values[i] = (source[i] == null ? "" : source[i]).getBytes(StandardCharsets.UTF_8);
+                length += varintSize(values[i].length) + values[i].length;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(4 + length);
+            frame.putInt(length).put(command.op);
+            for (byte[] value : values) {
+                if (value == null) continue;
+                putVarint(frame, value.length);
+                frame.put(value);
+            }
+            return frame.array();
+        }
+
+        // Decodes the frame body between buffer's position and end (exclusive). Strings are built straight
+        // from the buffer's bytes; a direct buffer goes through scratch, which is reused across calls.
+        static Command decode(ByteBuffer buffer, int end, byte[] scratch) throws IOException {
+            try {
+                byte op = buffer.get();
+                int fields = (op >= 0 && op < FIELDS.length) ? FIELDS[op] : UNKNOWN;
+                if (fields == UNKNOWN) throw new IOException("Unknown opcode " + op);
+                // An empty field reads as missing, the same as a word left off a text line
+                String user = ((fields & USER) != 0) ? getString(buffer, end, scratch) : null;
+                String tag = ((fields & TAG) != 0) ? getString(buffer, end, scratch) : null;
+                String text = ((fields & TEXT) != 0) ? getString(buffer, end, scratch) : null;
+                String extra = ((fields & EXTRA) != 0) ? getString(buffer, end, scratch) : null;
+                if (buffer.position() != end) throw new IOException("Malformed frame");
+                return new Command(op, user, (tag == null) ? "" : tag, text, extra);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated frame");
+            }
+        }
+
+        private static String getString(ByteBuffer buffer, int end, byte[] scratch) throws IOException {
+            int length = getVarint(buffer);
+            if (length < 0 || length > end - buffer.position()) throw new IOException("Malformed frame");
+            if (length == 0) return null;
+            String value;
+            if (buffer.hasArray()) {
+                value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] bytes = (length <= scratch.length) ? scratch : new byte[length];
+                buffer.get(bytes, 0, length);
+                value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            return value;
+        }
+
+        private static int varintSize(int value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) size++;
+            return size;
+        }
+
+        private static void putVarint(ByteBuffer buffer, int value) {
+            while ((value & ~0x7f) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private static int getVarint(ByteBuffer buffer) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IOException("Malformed length");
+        }
+    }
+
+    // One client command, whichever wire format it arrived in. Missing fields are null; tag is never null.
+    static final class Command {
+        final byte op;
+        final String user;
+        final String tag;
+        final String text;
+        final String extra;
+
+        Command(byte op, String user, String tag, String text, String extra) {
+            this.op = op;
+            this.user = user;
+            this.tag = tag;
+            this.text = text;
+            this.extra = extra;
+        }
+    }
+
+    // Thread to handle each client's connection
+    static class ClientHandler implements Runnable, Recipient {
+        private Socket clientSocket;
+        private volatile OutputStream out;
+        private BufferedReader in;
+        private NioConnection connection; // set instead of clientSocket in nio mode
+        private volatile String username;
+        private volatile boolean registered;
+        private volatile boolean closed; // logout() has run
+        private long joinOrder;
+        private volatile boolean binary; // speaks Protocol frames; settled by the handshake, before joining
+
+        // Rooms this user is in and the one plain chat lines go to; only touched while handling this user's commands
+        private final List<Room> joinedRooms = new ArrayList<>();
+        private Room activeRoom;
+        // Where /history continues from: the oldest line already shown for historyRoom
+        private String historyRoom;
+        private long historyCursor;
+
+        // Encoded lines waiting to be written; a writer drains them so senders never block on this socket
+        private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicInteger outboundBytes = new AtomicInteger();
+        // IDLE, then DELAYED while the Flusher holds it (--write-delay), SCHEDULED once a drain is on its way
+        private final AtomicInteger writeState = new AtomicInteger(IDLE);
+        private long flushDue; // nanoTime the Flusher releases a DELAYED write; set before it is queued there
+        private final AtomicBoolean disconnecting = new AtomicBoolean(false);
+
+        // Heartbeats: the wheel tick of the last command, when the timer wheel last pinged this user, and
+        // the tick it is next due a look at. Only the TimerWheel thread touches the last two.
+        private volatile long lastActiveTick = TimerWheel.tick;
+        private long pingedTick = -1;
+        private long timerDue;
+        private CommandLimits limits; // null unless a --*-rate option is set
+
+        ClientHandler(Socket socket) {
+            this.clientSocket = socket;
+        }
+
+        ClientHandler(NioConnection connection) {
+            this.connection = connection;
+        }
+
+        // A user with no socket whose lines go to stream; benchmarks register these to fill the registry
+        ClientHandler(String username, OutputStream stream) {
+            this.username = username;
+            this.out = stream;
+        }
+
+        public void sendMessage(String message) {
+            enqueue(binary ? Protocol.messageFrame(message) : encode(message));
+        }
+
+        public String username() {
+            return username;
+        }
+
+        // Private file-transfer commands go out as a frame or as the matching text line
+        public void send(Command command) {
+            enqueue(binary ? Protocol.encode(command) : encode(Protocol.toLine(command)));
+        }
+
+        // Never blocks the caller unless the slow-consumer policy is "block". With --write-delay the write
+        // waits for more lines unless --write-batch bytes are already queued.
+        void enqueue(byte[] line) {
+            if (!outbound.offer(line) && !handleFullQueue(line)) {
+                return;
+            }
+            if (outboundBytes.addAndGet(line.length) < writeBatchBytes && writeDelayMillis > 0) {
+                if (writeState.compareAndSet(IDLE, DELAYED)) Flusher.add(this);
+                return;
+            }
+            scheduleWrite();
+        }
+
+        private byte[] pollOutbound() {
+            byte[] line = outbound.poll();
+            if (line != null) outboundBytes.addAndGet(-line.length);
+            return line;
+        }
+
+        // Applies the slow-consumer policy; returns true if the line ended up queued
+        private boolean handleFullQueue(byte[] line) {
+            if (slowConsumerPolicy.equals("drop-oldest")) {
+                while (!outbound.offer(line)) {
+                    if (pollOutbound() != null) droppedMessages.incrementAndGet();
+                }
+                return true;
+            }
+            if (slowConsumerPolicy.equals("block")) {
+                try {
+                    if (outbound.offer(line, blockTimeoutMillis, TimeUnit.MILLISECONDS)) return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            droppedMessages.incrementAndGet();
+            disconnectSlowConsumer();
+            return false;
+        }
+
+        private void disconnectSlowConsumer() {
+            if (!disconnecting.compareAndSet(false, true)) return;
+            slowConsumerDisconnects.incrementAndGet();
+            Log.warn("[" + username + "] is not reading; disconnecting (" + outbound.size() + " messages queued).");
+            closeTransport();
+        }
+
+        // Safe from any thread
+        private void closeTransport() {
+            if (connection != null) {
+                connection.loop.execute(connection::close);
+            } else if (clientSocket != null) {
+                // The reader thread sees the closed socket and runs the usual cleanup
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.warn("Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+
+        // Dispatches a drain now, overtaking a DELAYED one
+        private void scheduleWrite() {
+            int state;
+            do {
+                state = writeState.get();
+                if (state == SCHEDULED) return;
+            } while (!writeState.compareAndSet(state, SCHEDULED));
+            dispatchWrite();
+        }
+
+        // The Flusher's call once flushDue has passed; does nothing if scheduleWrite got there first
+        void flushDelayed() {
+            if (writeState.compareAndSet(DELAYED, SCHEDULED)) dispatchWrite();
+        }
+
+        private void dispatchWrite() {
+            if (connection != null) {
+                connection.loop.execute(connection::onWritable);
+            } else {
+                writers.execute(this::drainToSocket);
+            }
+        }
+
+        // Blocking-mode writer: everything queued goes through the --write-batch sized buffer, which
+        // reaches the socket when it fills and once more when the queue is empty
+        private void drainToSocket() {
+            OutputStream stream = out;
+            if (stream == null) {
+                // Not connected yet; run() schedules a drain once the stream is open
+                writeState.set(IDLE);
+                if (out != null && !outbound.isEmpty()) scheduleWrite();
+                return;
+            }
+            try {
+                byte[] line;
+                while ((line = pollOutbound()) != null) {
+                    stream.write(line);
+                    Metrics.written(line.length);
+                    if (outbound.isEmpty()) {
+                        stream.flush();
+                        Metrics.socketWrites.increment();
+                    }
+                }
+            } catch (IOException e) {
+                if (socketOpen()) {
+                    Log.warn("Fail to send message to " + username + ": " + e.getMessage());
+                }
+                outbound.clear();
+                outboundBytes.set(0);
+            } finally {
+                writeState.set(IDLE);
+            }
+            // A sender may have queued a line after the last poll but before the flag was cleared
+            if (!outbound.isEmpty() && socketOpen()) {
+                scheduleWrite();
+            }
+        }
+
+        // A benchmark's socketless handler counts as open; its stream is all there is
+        private boolean socketOpen() {
+            return clientSocket == null || !clientSocket.isClosed();
+        }
+
+        @Override
+        public void run() {
+            logConnection(clientSocket.getInetAddress(), clientSocket.getPort());
+
+            try {
+                clientSocket.setTcpNoDelay(tcpNoDelay);
+                if (clientSocket instanceof SSLSocket) {
+                    long start = System.nanoTime();
+                    ((SSLSocket) clientSocket).startHandshake();
+                    Metrics.tlsHandshake(System.nanoTime() - start);
+                }
+                InputStream input = new BufferedInputStream(clientSocket.getInputStream());
+                out = new BufferedOutputStream(clientSocket.getOutputStream(), writeBatchBytes);
+                scheduleWrite();
+
+                // A binary client opens with the handshake; anything else is a text client's username line
+                input.mark(1);
+                int first = input.read();
+                input.reset();
+                if (first == Protocol.HANDSHAKE_MAGIC) {
+                    readFrames(new DataInputStream(input));
+                } else {
+                    in = new BufferedReader(new InputStreamReader(new LineLimitInputStream(input), StandardCharsets.UTF_8));
+                    String message;
+                    while ((message = in.readLine()) != null) {
+                        if (!onLine(message)) break;
+                    }
+                }
+            } catch (LineTooLongException e) {
+                lineTooLong();
+            } catch (IOException e) {
+                // Log critical errors (unlike connection reset, or the socket we closed) but let finally block handle cleanup
+                if (!disconnecting.get() && (e.getMessage() == null || !e.getMessage().contains("Connection reset"))) {
+                     Log.warn("Error for " + username + ": " + e.getMessage());
+                }
+            } finally {
+                logout();
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.warn("Error closing socket: " + e.getMessage());
+                }
+            }
+        }
+
+        // The connection is closed for it; the binary protocol has MAX_FRAME for the same purpose
+        void lineTooLong() {
+            Metrics.longLines.increment();
+            Log.warn("[" + username + "] sent a line longer than " + Protocol.MAX_LINE + " bytes; disconnecting.");
+        }
+
+        // Blocking-mode frame reader; the frame buffer grows to the largest frame seen
+        private void readFrames(DataInputStream input) throws IOException {
+            input.readByte(); // HANDSHAKE_MAGIC
+            int version;
+            try {
+                version = input.readUnsignedByte();
+            } catch (EOFException e) {
+                return; // gone before naming a version
+            }
+            if (!acceptHandshake(version)) return;
+
+            byte[] frame = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 1 || length > Protocol.MAX_FRAME) throw new IOException("Bad frame length " + length);
+                if (frame.length < length) frame = new byte[Math.max(length, frame.length * 2)];
+                input.readFully(frame, 0, length);
+                if (!onCommand(Protocol.decode(ByteBuffer.wrap(frame, 0, length), length, null))) return;
+            }
+        }
+
+        // Answers with the version this server speaks; false (and the client is dropped) if it asked for another.
+        // A compressed stream is never granted over TLS: chat lines an attacker can choose, deflated next to
+        // private ones, would leak those through the length of the ciphertext (as in CRIME).
+        boolean acceptHandshake(int version) {
+            binary = true;
+            boolean secure = (connection != null) ? connection.tls != null : clientSocket instanceof SSLSocket;
+            boolean deflate = version == Protocol.VERSION_DEFLATE && compress && !secure;
+            writeDirect(new byte[] {Protocol.HANDSHAKE_MAGIC, deflate ? Protocol.VERSION_DEFLATE : Protocol.VERSION});
+            if (deflate) startDeflate();
+            if (version == Protocol.VERSION || version == Protocol.VERSION_DEFLATE) return true;
+            Log.warn("Rejected a client asking for protocol version " + version + ".");
+            return false;
+        }
+
+        // From here on everything sent to this client goes through one deflater. In thread mode each flush
+        // of out becomes a sync flush, so the client can decode every line as soon as it is written; the
+        // Deflater's memory goes back when it is collected, as the writer may still be using it at logout.
+        private void startDeflate() {
+            if (connection != null) {
+                connection.startDeflate();
+                return;
+            }
+            try {
+                OutputStream socket = new CountingOutputStream(clientSocket.getOutputStream(), Metrics.deflateOut);
+                out = new BufferedOutputStream(new CountingOutputStream(
+                        new DeflaterOutputStream(socket, new Deflater(Deflater.BEST_SPEED), writeBatchBytes, true),
+                        Metrics.deflateIn), writeBatchBytes);
+            } catch (IOException e) {
+                // the socket is closing; the reader sees that next
+            }
+        }
+
+        void logConnection(InetAddress address, int port) {
+            String threadName = Thread.currentThread().getName();
+            if (threadName.isEmpty()) threadName = Thread.currentThread().toString(); // virtual threads are unnamed
+            Log.info("New connection, thread name is " + threadName +
+                    ", IP is: " + address.getHostAddress() +
+                    ", port: " + port);
+
+            int requestNum = counter.incrementAndGet();
+            Log.info("Adding to list of sockets as " + requestNum);
+        }
+
+        // Entry point for every line read from a text client, whichever transport it came from.
+        // The first line is the username; returns false when the connection should be closed.
+        boolean onLine(String message) {
+            return onCommand((username == null) ? new Command(Protocol.LOGIN, null, "", message, null) : Protocol.parseLine(message));
+        }
+
+        // Every command lands here, whichever wire format it came in
+        boolean onCommand(Command command) {
+            Metrics.commandIn(command.op);
+            lastActiveTick = TimerWheel.tick;
+            if (username == null) {
+                if (command.op != Protocol.LOGIN || command.text == null) return false;
+                username = command.text;
+                if (!register(this)) {
+                    Log.info("[" + username + "] rejected: username already in use.");
+                    rejectLogin("[Server] Username '" + username + "' is already taken.");
+                    return false;
+                }
+                registered = true;
+                if (CommandLimits.enabled()) limits = new CommandLimits();
+                activeRoom = joinRoom(LOBBY, this);
+                joinedRooms.add(activeRoom);
+                Log.info("[" + username + "] has joined the chat.");
+                broadcast("[" + username + "] has joined the chat.", this);
+                sendRecentHistory(activeRoom);
+                return true;
+            }
+            if (limits != null && !withinLimits(command)) return true;
+            return handle(command);
+        }
+
+        // False when the user is over the rate for this kind of command, which is then dropped. The user is
+        // told once per run of dropped commands, and counted as throttled the first time it happens.
+        private boolean withinLimits(Command command) {
+            int kind = CommandLimits.kindOf(command.op);
+            if (kind < 0) return true;
+            if (limits.tryAcquire(kind)) {
+                limits.warned = false;
+                return true;
+            }
+            Metrics.throttledCommands[kind].increment();
+            if (!limits.throttled) {
+                limits.throttled = true;
+                Metrics.throttledConnections.increment();
+                Log.info("[" + username + "] is over the " + CommandLimits.NAMES[kind] + " rate limit; dropping commands.");
+            }
+            if (!limits.warned) {
+                limits.warned = true;
+                sendMessage("[Server] Slow down: too many " + CommandLimits.NAMES[kind] + " commands, some were dropped.");
+            }
+            return false;
+        }
+
+        // The TimerWheel's call: closes a connection that has sent nothing for --idle-timeout, pings a user
+        // who has sent nothing for --ping-interval (once per quiet spell), and returns the ticks until the
+        // next look, or -1 once the connection is gone
+        long onHeartbeat(long now) {
+            if (closed) return -1;
+            long active = lastActiveTick; // read once: a reply to the ping may land while we look
+            long idle = now - active;
+            if (TimerWheel.idleTicks > 0 && idle >= TimerWheel.idleTicks) {
+                if (disconnecting.compareAndSet(false, true)) {
+                    Metrics.reaped.increment();
+                    Log.info("[" + (username == null ? "not logged in" : username) + "] sent nothing for "
+                            + idleTimeout + " s; disconnecting.");
+                    closeTransport();
+                }
+                return -1;
+            }
+            long next = (TimerWheel.idleTicks > 0) ? TimerWheel.idleTicks - idle : Long.MAX_VALUE;
+            if (TimerWheel.pingTicks > 0) {
+                // A client that has not logged in (or finished the binary handshake) would not understand one
+                boolean pinged = pingedTick > active;
+                if (registered && idle >= TimerWheel.pingTicks && !pinged) {
+                    send(new Command(Protocol.PING, null, "", null, null));
+                    Metrics.pingsSent.increment();
+                    pingedTick = now;
+                    pinged = true;
+                }
+                next = Math.min(next, (pinged || !registered) ? TimerWheel.pingTicks : TimerWheel.pingTicks - idle);
+            }
+            return next;
+        }
+
+        void logout() {
+            closed = true;
+            connections.decrementAndGet();
+            if (!registered) return; // never joined, or the username was rejected
+            Log.info("[" + username + "] has left the chat.");
+            for (Room room : joinedRooms) {
+                room.remove(this);
+            }
+            joinedRooms.clear();
+            activeRoom = null;
+            unregister(this);
+            broadcast("[" + username + "] has left the chat.", this);
+        }
+
+        private void rejectLogin(String reason) {
+            writeDirect(binary ? Protocol.messageFrame(reason) : encode(reason));
+        }
+
+        // Nothing else writes to a handler that has not joined, so handshake and login replies go
+        // straight out instead of through the outbound queue
+        private void writeDirect(byte[] bytes) {
+            try {
+                if (connection != null) {
+                    connection.writeNow(bytes);
+                } else {
+                    out.write(bytes);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the connection is being closed anyway
+            }
+        }
+
+        private boolean handle(Command command) {
+            switch (command.op) {
+                case Protocol.QUIT:
+                    return false;
+                case Protocol.WHO:
+                    String userList = getUserList();
+                    if (Log.enabled(Log.DEBUG)) {
+                        Log.debug("[" + username + "] requested online users list.");
+                        Log.debug(userList);
+                    }
+                    sendMessage(userList);
+                    return true;
+                case Protocol.SENDFILE:
+                    handleSendFile(command);
+                    return true;
+                case Protocol.ACCEPTFILE:
+                case Protocol.REJECTFILE:
+                    handleFileResponse(command);
+                    return true;
+                case Protocol.FILEPORT: {
+                    // Format: /fileport <recipient> [#tag] <port> [streams] (Sent by sender's client)
+                    if (command.user == null || command.extra == null) return true;
+
+                    Recipient recipient = findRecipient(command.user);
+                    if (recipient != null) {
+                        // Send silently to the recipient only, naming the sender so it can tell concurrent transfers apart
+                        recipient.send(new Command(Protocol.FILEPORT, username, command.tag, null, command.extra));
+                    } else {
+                        sendMessage("[Server] User '" + command.user + "' not found to relay file port.");
+                    }
+                    return true;
+                }
+                case Protocol.FILECOMPLETE: {
+                    // Format: /filecomplete [#tag] <message>
+                    String fileMsg = (command.text == null) ? "" : command.text;
+                    Log.info(fileMsg); // print on server console
+                    broadcast(fileMsg, null);    // broadcast to all clients
+                    Metrics.fileCompleted(username, command.tag);
+                    return true;
+                }
+                case Protocol.CHAT: {
+                    String message = (command.text == null) ? "" : command.text;
+                    if (activeRoom == null) {
+                        sendMessage("[Server] You are not in any room. Use /join <room>.");
+                        return true;
+                    }
+                    // Lobby lines keep the original format so clients that never /join see no change
+                    String line = (activeRoom.name.equals(LOBBY) ? "" : "[#" + activeRoom.name + "]") + "[" + username + "] " + message;
+                    if (Log.enabled(Log.DEBUG)) Log.debug(line);
+                    activeRoom.chat(line, this);
+                    return true;
+                }
+                case Protocol.HISTORY:
+                    handleHistory(command);
+                    return true;
+                case Protocol.MSG:
+                    handleDirectMessage(command);
+                    return true;
+                case Protocol.JOIN:
+                    handleJoin(command);
+                    return true;
+                case Protocol.LEAVE:
+                    handleLeave(command);
+                    return true;
+                case Protocol.ROOMS:
+                    sendMessage(roomList(this));
+                    return true;
+                case Protocol.PONG:
+                    return true; // onCommand has already noted the activity
+                default:
+                    return false; // a server-to-client opcode from a binary client
+            }
+        }
+
+        // Straight to one user through the name index; nobody else's queue is touched
+        private void handleDirectMessage(Command command) {
+            if (command.user == null || command.text == null) {
+                sendMessage("Usage: /msg <user> <message>");
+                return;
+            }
+            Recipient recipient = findRecipient(command.user);
+            if (recipient == null) {
+                sendMessage("[Server] User '" + command.user + "' not found.");
+                return;
+            }
+            if (Log.enabled(Log.DEBUG)) Log.debug("[" + username + " -> " + recipient.username() + "] " + command.text);
+            recipient.sendMessage("[" + username + " -> " + recipient.username() + "] " + command.text);
+        }
+
+        // Joins the room (creating it if needed) and makes it the one plain chat lines go to
+        private void handleJoin(Command command) {
+            String name = roomName(command.text);
+            if (name == null) {
+                sendMessage("Usage: /join <room> (one word, up to " + MAX_ROOM_NAME + " characters)");
+                return;
+            }
+            Room existing = findRoom(name);
+            if ((existing == null || !joinedRooms.contains(existing)) && joinedRooms.size() >= maxJoinedRooms) {
+                sendMessage("[Server] You are in " + joinedRooms.size() + " rooms already. /leave one before joining another.");
+                return;
+            }
+            Room room = joinRoom(name, this);
+            if (room == null) {
+                sendMessage("[Server] The server has too many rooms to open #" + name + ". Join an existing one (/rooms).");
+                return;
+            }
+            boolean joined = !joinedRooms.contains(room);
+            if (joined) {
+                joinedRooms.add(room);
+                room.send("[" + username + "] has joined #" + room.name + ".", this);
+            }
+            activeRoom = room;
+            int size = room.members().length;
+            sendMessage("[Server] Now chatting in #" + room.name + " (" + size + (size == 1 ? " user" : " users") + "). /leave "
+                    + room.name + " to leave.");
+            if (joined) sendRecentHistory(room);
+        }
+
+        // The room's in-memory ring, so a joiner sees the conversation so far without a disk read
+        private void sendRecentHistory(Room room) {
+            historyRoom = roomKey(room.name);
+            historyCursor = Long.MAX_VALUE;
+            List<History.Entry> recent = History.recent(historyRoom);
+            if (recent.isEmpty()) return;
+            sendMessage("[Server] Recent messages in #" + room.name + ":");
+            for (History.Entry entry : recent) {
+                sendMessage(entry.line);
+            }
+            historyCursor = recent.get(0).seq;
+        }
+
+        // Each /history pages further back in the active room, from the ring and then the message log
+        private void handleHistory(Command command) {
+            int count = DEFAULT_HISTORY_PAGE;
+            if (command.text != null) {
+                try {
+                    count = Integer.parseInt(command.text);
+                } catch (NumberFormatException e) {
+                    count = 0;
+                }
+                if (count <= 0 || count > MAX_HISTORY_PAGE) {
+                    sendMessage("Usage: /history [n] (1 to " + MAX_HISTORY_PAGE + " lines, default " + DEFAULT_HISTORY_PAGE + ")");
+                    return;
+                }
+            }
+            if (activeRoom == null) {
+                sendMessage("[Server] You are not in any room. Use /join <room>.");
+                return;
+            }
+            String key = roomKey(activeRoom.name);
+            if (!key.equals(historyRoom)) {
+                historyRoom = key;
+                historyCursor = Long.MAX_VALUE;
+            }
+            List<History.Entry> page = History.page(key, historyCursor, count);
+            if (page.isEmpty()) {
+                sendMessage("[Server] No earlier messages in #" + activeRoom.name + ".");
+                return;
+            }
+            sendMessage("[Server] Earlier messages in #" + activeRoom.name + ":");
+            for (History.Entry entry : page) {
+                sendMessage(entry.line);
+            }
+            historyCursor = page.get(0).seq;
+        }
+
+        // Without a name, leaves the active room; the most recently joined remaining room becomes active
+        private void handleLeave(Command command) {
+            String name = (command.text == null) ? (activeRoom == null ? null : activeRoom.name) : roomName(command.text);
+            Room room = (name == null) ? null : findRoom(name);
+            if (room == null || !joinedRooms.remove(room)) {
+                sendMessage("[Server] You are not in " + (name == null ? "any room" : "#" + name) + ".");
+                return;
+            }
+            room.remove(this);
+            room.send("[" + username + "] has left #" + room.name + ".", null);
+            if (activeRoom == room) {
+                activeRoom = joinedRooms.isEmpty() ? null : joinedRooms.get(joinedRooms.size() - 1);
+            }
+            sendMessage("[Server] Left #" + room.name + "."
+                    + (activeRoom == null ? " You are not in any room; /join <room> to chat." : " Now chatting in #" + activeRoom.name + "."));
+        }
+
+        private void handleSendFile(Command command) {
+            // Format: /sendfile <recipient> [#tag] <filename> [size]
+            if (command.user == null || command.text == null) {
+                sendMessage("Usage: /sendfile <recipient> <filename>");
+                return;
+            }
+
+            String recipientName = command.user;
+            String fileName = command.text;
+            String sizeKB = (command.extra != null) ? command.extra : "unknown size";
+
+            Recipient receiver = findRecipient(recipientName);
+            if (receiver == null) {
+                sendMessage("[Server] User '" + recipientName + "' not found.");
+                return;
+            }
+
+            // 1. Server broadcasts the initiation to ALL clients
+            String publicMsg = "[File transfer initiated from " + username + " to " + recipientName
+                    + " " + fileName + " (" + sizeKB + ")]";
+            Log.info(publicMsg); // server log
+            broadcast(publicMsg, null);     // broadcast to all
+            Metrics.fileOffered(username, recipientName, command.tag, sizeKB);
+
+            // 2. Server sends a PRIVATE command to the RECIPIENT to prompt acceptance
+            // Format: /filerequest <sender> [#tag] <filename> <size>
+            receiver.send(new Command(Protocol.FILEREQUEST, username, command.tag, fileName, sizeKB));
+        }
+
+        private void handleFileResponse(Command command) {
+            if (command.user == null) {
+                // Log the incomplete command and send a notification back to the client
+                sendMessage("[Server] Command incomplete. Usage: /acceptfile <sendername> or /rejectfile <sendername>");
+                return;
+            }
+
+            String senderName = command.user;
+            String fileName = (command.text != null) ? command.text : "unknown_file";
+
+            Recipient sender = findRecipient(senderName);
+            if (sender == null) {
+                sendMessage("[Server] User '" + senderName + "' not found.");
+                return;
+            }
+
+            if (command.op == Protocol.ACCEPTFILE) {
+                Log.info("[File transfer accepted from " + senderName + " to " + username + "]");
+                broadcast("[File transfer accepted from " + senderName + " to " + username + "]", null);
+
+                // Send PRIVATE command to the SENDER's client to trigger the file transfer thread
+                // Format: /fileaccepted <recipient> [#tag] <filename>
+                String tag = withRelayToken(command.tag, sender, username);
+                sender.send(new Command(Protocol.FILEACCEPTED, username, tag, fileName, null));
+                Metrics.fileAccepted(senderName, username, command.tag);
+
+            } else {
+                Log.info("[" + username + " rejected file transfer from " + senderName + "]");
+                // Send rejection privately to the SENDER; a tagged one tells its client which transfer to drop
+                if (command.tag.isEmpty()) {
+                    sender.sendMessage("[File transfer rejected by " + username + "]");
+                } else {
+                    sender.send(new Command(Protocol.FILEREJECTED, username, command.tag, null, null));
+                }
+                // Optionally broadcast a rejection notice to all
+                broadcast("[File transfer rejected by " + username + " for a file from " + senderName + "]", null);
+                Metrics.fileRejected(senderName, username, command.tag);
+            }
+        }
+
+    }
+
+    // One selector thread serving many non-blocking connections
+    static class SelectorLoop implements Runnable {
+        private final Selector selector;
+        // Queued lines are wrapped into these for one gathering write; only used on the loop thread
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Shared by every connection on this loop, so idle connections cost no read buffer
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Frame fields are copied out of readBuffer through here to build their Strings
+        private final byte[] scratch = new byte[READ_BUFFER_SIZE];
+        // With --tls=on: ciphertext is read here, and connections borrow from tlsBuffers only while they
+        // hold half a record or output the socket has not taken, so idle TLS connections cost no buffers
+        private final ByteBuffer tlsReadBuffer = (tlsContext != null) ? ByteBuffer.allocateDirect(TLS_BUFFER_RECORDS * tlsPacketSize) : null;
+        private final ArrayDeque<ByteBuffer> tlsBuffers = new ArrayDeque<>();
+
+        SelectorLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        ByteBuffer borrowTlsBuffer() {
+            ByteBuffer buffer = tlsBuffers.poll();
+            return (buffer != null) ? buffer : ByteBuffer.allocateDirect(TLS_BUFFER_RECORDS * tlsPacketSize);
+        }
+
+        void releaseTlsBuffer(ByteBuffer buffer) {
+            buffer.clear();
+            if (tlsBuffers.size() < MAX_POOLED_TLS_BUFFERS) tlsBuffers.push(buffer);
+        }
+
+        // Runs the task on the loop thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.open();
+                } catch (IOException e) {
+                    Log.warn("Error registering connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        // One failing task (say, a close on a key already cancelled) must not end the loop
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.warn("Selector task failed: " + e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.onReadable(readBuffer);
+                            if (key.isValid() && key.isWritable()) connection.onWritable();
+                        } catch (RuntimeException e) {
+                            Log.warn("Error for " + connection.handler.username + ": " + e);
+                            connection.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.warn("Selector error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Non-blocking transport for one ClientHandler: line or frame decoding on input, draining its queue on output
+    static class NioConnection {
+        private final SelectorLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ClientHandler handler;
+
+        // Bytes of a line or frame that is not complete yet; only allocated when one spans reads
+        private byte[] partial;
+        private int partialLength;
+        private boolean framingKnown; // decided by the first byte the client sends
+        private boolean frames;
+
+        private ByteBuffer[] unwritten; // what a gathering write left over when the socket buffer filled
+        private boolean closed; // only touched on the loop thread
+        private TlsSession tls; // null unless --tls=on
+        private Deflater deflater;   // null unless the client asked for a compressed stream
+        private ByteBuffer deflated; // deflater output not written yet, ready to write
+
+        NioConnection(SelectorLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void open() {
+            if (tlsContext != null) tls = new TlsSession(this);
+            handler = new ClientHandler(this);
+            connections.incrementAndGet();
+            TimerWheel.add(handler);
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+            } catch (IOException e) {
+                // keep the default
+            }
+            Socket socket = channel.socket();
+            handler.logConnection(socket.getInetAddress(), socket.getPort());
+        }
+
+        void onReadable(ByteBuffer buffer) {
+            int n;
+            try {
+                if (tls != null) {
+                    tls.onReadable(buffer);
+                    return;
+                }
+                buffer.clear();
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                if (e.getMessage() == null || !e.getMessage().contains("Connection reset")) {
+                    Log.warn("Error for " + handler.username + ": " + e.getMessage());
+                }
+                close();
+                return;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            onBytes(buffer);
+        }
+
+        // Decodes what the client sent, straight from the socket or as decrypted by tls
+        void onBytes(ByteBuffer buffer) {
+            if (!framingKnown && buffer.hasRemaining()) {
+                framingKnown = true;
+                frames = buffer.get(buffer.position()) == Protocol.HANDSHAKE_MAGIC;
+            }
+            if (frames) {
+                readFrames(buffer);
+                return;
+            }
+
+            int start = buffer.position();
+            int limit = buffer.limit();
+            for (int i = start; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    if (partialLength + (i - start) > Protocol.MAX_LINE) {
+                        handler.lineTooLong();
+                        close();
+                        return;
+                    }
+                    String line = takeLine(buffer, start, i);
+                    start = i + 1;
+                    if (!handler.onLine(line)) {
+                        close();
+                        return;
+                    }
+                }
+            }
+            if (start < limit) {
+                // Without a newline in sight the line could grow until the heap runs out
+                if (partialLength + (limit - start) > Protocol.MAX_LINE) {
+                    handler.lineTooLong();
+                    close();
+                    return;
+                }
+                appendPartial(buffer, start, limit);
+            }
+        }
+
+        // The two handshake bytes, then length-prefixed frames decoded in place from the read buffer.
+        // Only a frame that spans reads is copied, into partial.
+        private void readFrames(ByteBuffer buffer) {
+            ByteBuffer source = buffer;
+            if (partialLength > 0) {
+                appendPartial(buffer, buffer.position(), buffer.limit());
+                source = ByteBuffer.wrap(partial, 0, partialLength);
+            }
+            try {
+                if (!handler.binary) {
+                    if (source.remaining() < 2) {
+                        keepRemainder(source);
+                        return;
+                    }
+                    source.get(); // HANDSHAKE_MAGIC
+                    if (!handler.acceptHandshake(source.get() & 0xff)) {
+                        close();
+                        return;
+                    }
+                }
+                while (source.remaining() >= 4) {
+                    int length = source.getInt(source.position());
+                    if (length < 1 || length > Protocol.MAX_FRAME) throw new IOException("Bad frame length " + length);
+                    if (source.remaining() < 4 + length) break;
+                    source.position(source.position() + 4);
+                    Command command = Protocol.decode(source, source.position() + length, loop.scratch);
+                    if (!handler.onCommand(command)) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Error for " + handler.username + ": " + e.getMessage());
+                close();
+                return;
+            }
+            keepRemainder(source);
+        }
+
+        // Carries the start of an incomplete frame over to the next read
+        private void keepRemainder(ByteBuffer source) {
+            int count = source.remaining();
+            if (count == 0) {
+                partial = null;
+                partialLength = 0;
+            } else if (source.hasArray() && source.array() == partial) {
+                System.arraycopy(partial, source.position(), partial, 0, count);
+                partialLength = count;
+            } else {
+                appendPartial(source, source.position(), source.limit());
+            }
+        }
+
+        // Joins any carried-over bytes with buffer[from, to) and decodes them, dropping a trailing '\r'
+        private String takeLine(ByteBuffer buffer, int from, int to) {
+            int length = partialLength + (to - from);
+            byte[] bytes = new byte[length];
+            if (partialLength > 0) {
+                System.arraycopy(partial, 0, bytes, 0, partialLength);
+            }
+            buffer.position(from);
+            buffer.get(bytes, partialLength, to - from);
+            partial = null;
+            partialLength = 0;
+
+            if (length > 0 && bytes[length - 1] == '\r') length--;
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void appendPartial(ByteBuffer buffer, int from, int to) {
+            int count = to - from;
+            if (partial == null) {
+                partial = new byte[Math.max(256, count)];
+            } else if (partial.length < partialLength + count) {
+                partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + count));
+            }
+            buffer.position(from);
+            buffer.get(partial, partialLength, count);
+            partialLength += count;
+        }
+
+        // Drains the handler's outbound queue with gathering writes of up to --write-batch bytes, so a
+        // burst of lines costs one system call rather than one each; runs on the loop thread
+        void onWritable() {
+            if (closed) return;
+            if (tls != null) {
+                tls.onWritable();
+                return;
+            }
+            if (deflater != null) {
+                writeDeflated();
+                return;
+            }
+            BlockingQueue<byte[]> outbound = handler.outbound;
+            ByteBuffer[] gather = loop.gather;
+            try {
+                while (true) {
+                    while (true) {
+                        int count = 0;
+                        long bytes = 0;
+                        if (unwritten != null) {
+                            for (ByteBuffer buffer : unwritten) {
+                                gather[count++] = buffer;
+                                bytes += buffer.remaining();
+                            }
+                            unwritten = null;
+                        }
+                        while (count < gather.length && bytes < writeBatchBytes) {
+                            byte[] line = handler.pollOutbound();
+                            if (line == null) break;
+                            // The line may be shared with other recipients, so wrap it rather than copy it
+                            gather[count++] = ByteBuffer.wrap(line);
+                            bytes += line.length;
+                        }
+                        if (count == 0) break;
+                        long written;
+                        do {
+                            written = channel.write(gather, 0, count);
+                            Metrics.socketWrites.increment();
+                        } while (written > 0 && gather[count - 1].hasRemaining());
+                        int done = 0;
+                        while (done < count && !gather[done].hasRemaining()) {
+                            Metrics.written(gather[done].capacity());
+                            done++;
+                        }
+                        if (done < count) {
+                            // Socket buffer is full; keep the rest and wait for OP_WRITE
+                            unwritten = Arrays.copyOfRange(gather, done, count);
+                            Arrays.fill(gather, 0, count, null);
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        Arrays.fill(gather, 0, count, null);
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    handler.writeState.set(IDLE);
+                    // A sender may have queued a line after the last poll but before the state was reset
+                    if (outbound.isEmpty() || !handler.writeState.compareAndSet(IDLE, SCHEDULED)) return;
+                }
+            } catch (IOException e) {
+                Arrays.fill(gather, null);
+                close();
+            }
+        }
+
+        // Best-effort write from the loop thread, bypassing the queue
+        void writeNow(byte[] line) throws IOException {
+            if (tls != null) {
+                tls.writeNow(line);
+            } else if (deflater != null) {
+                if (closed) return;
+                deflater.setInput(line);
+                deflate(Deflater.SYNC_FLUSH);
+                Metrics.deflateIn.add(line.length);
+                Metrics.deflateOut.add(channel.write(deflated));
+            } else {
+                channel.write(ByteBuffer.wrap(line));
+            }
+        }
+
+        // Called on the loop thread by the handshake, before anything else is queued for this client
+        void startDeflate() {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflated = ByteBuffer.allocate(Math.min(writeBatchBytes, 64 * 1024)).flip();
+        }
+
+        // onWritable for a compressed stream: up to --write-batch bytes of queued lines at a time go through
+        // the deflater, then a sync flush, and the result is written before the next batch is taken
+        private void writeDeflated() {
+            try {
+                while (true) {
+                    while (true) {
+                        if (deflated.hasRemaining()) {
+                            Metrics.deflateOut.add(channel.write(deflated));
+                            Metrics.socketWrites.increment();
+                            if (deflated.hasRemaining()) {
+                                // Socket buffer is full; the rest waits for OP_WRITE
+                                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                                return;
+                            }
+                        }
+                        int bytes = 0;
+                        byte[] line;
+                        while (bytes < writeBatchBytes && (line = handler.pollOutbound()) != null) {
+                            deflater.setInput(line);
+                            deflate(Deflater.NO_FLUSH);
+                            Metrics.written(line.length);
+                            bytes += line.length;
+                        }
+                        if (bytes == 0) break;
+                        deflate(Deflater.SYNC_FLUSH);
+                        Metrics.deflateIn.add(bytes);
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    handler.writeState.set(IDLE);
+                    // A sender may have queued a line after the last poll but before the state was reset
+                    if (handler.outbound.isEmpty() || !handler.writeState.compareAndSet(IDLE, SCHEDULED)) return;
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // Appends what the deflater produces for its input, or for the flush, to deflated; doubles the
+        // buffer whenever it fills, so one batch never needs more than one pass
+        private void deflate(int flush) {
+            deflated.compact();
+            do {
+                if (!deflated.hasRemaining()) {
+                    deflated.flip();
+                    deflated = ByteBuffer.allocate(deflated.capacity() * 2).put(deflated);
+                }
+                deflater.deflate(deflated, flush);
+            } while (!deflated.hasRemaining() || !deflater.needsInput());
+            deflated.flip();
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            key.cancel();
+            if (tls != null) tls.close();
+            if (deflater != null) deflater.end();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing socket: " + e.getMessage());
+            }
+            handler.logout();
+        }
+    }
+
+    // Server end of TLS for one nio connection (--tls=on). The engine decrypts into the loop's shared read
+    // buffer and encrypts queued lines with gathering wraps, a few records per socket write. Ciphertext
+    // buffers are borrowed from the loop's pool and returned as soon as they are empty. Handshake tasks
+    // (certificate signing and the like) run inline on the loop thread.
+    static final class TlsSession {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final NioConnection connection;
+        private final SSLEngine engine;
+        private ByteBuffer netIn;  // the start of a record that has not fully arrived, ready for more
+        private ByteBuffer netOut; // ciphertext the socket has not taken yet, ready to write
+        private final long handshakeStart = System.nanoTime(); // from accept, as in thread mode
+        private boolean handshaken;
+
+        TlsSession(NioConnection connection) {
+            this.connection = connection;
+            engine = tlsContext.createSSLEngine();
+            engine.setUseClientMode(false);
+        }
+
+        // Reads ciphertext and passes what it decrypts to the connection's decoder through plain
+        void onReadable(ByteBuffer plain) throws IOException {
+            SelectorLoop loop = connection.loop;
+            ByteBuffer net = netIn;
+            if (net == null) {
+                net = loop.tlsReadBuffer;
+                net.clear();
+            }
+            if (connection.channel.read(net) < 0) {
+                connection.close();
+                return;
+            }
+            net.flip();
+            unwrap(net, plain);
+            if (connection.closed) return;
+
+            if (!net.hasRemaining()) {
+                if (netIn != null) {
+                    loop.releaseTlsBuffer(netIn);
+                    netIn = null;
+                }
+            } else if (netIn == null) {
+                netIn = loop.borrowTlsBuffer();
+                netIn.put(net);
+            } else {
+                netIn.compact();
+            }
+        }
+
+        private void unwrap(ByteBuffer net, ByteBuffer plain) throws IOException {
+            while (net.hasRemaining()) {
+                plain.clear();
+                SSLEngineResult result = engine.unwrap(net, plain);
+                plain.flip();
+                if (plain.hasRemaining()) {
+                    connection.onBytes(plain);
+                    if (connection.closed) return;
+                }
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        connection.close();
+                        return;
+                    case BUFFER_UNDERFLOW:
+                        return; // the rest of the record comes with a later read
+                    case BUFFER_OVERFLOW:
+                        throw new SSLException("TLS record larger than the read buffer");
+                    default:
+                        break;
+                }
+                SSLEngineResult.HandshakeStatus status = result.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.FINISHED) finished();
+                // The handshake wants to send (or has finished and lines queued meanwhile can go out)
+                if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) connection.onWritable();
+                if (connection.closed) return;
+            }
+        }
+
+        // Writes pending ciphertext, then whatever the handshake needs to send, then the handler's queued
+        // lines in batches of up to --write-batch bytes; runs on the loop thread
+        void onWritable() {
+            ClientHandler handler = connection.handler;
+            ByteBuffer[] gather = connection.loop.gather;
+            try {
+                while (true) {
+                    if (!flush() || !handshake()) return;
+                    int count = 0;
+                    long bytes = 0;
+                    if (connection.unwritten != null) {
+                        for (ByteBuffer buffer : connection.unwritten) {
+                            gather[count++] = buffer;
+                            bytes += buffer.remaining();
+                        }
+                        connection.unwritten = null;
+                    }
+                    while (count < gather.length && bytes < writeBatchBytes) {
+                        byte[] line = handler.pollOutbound();
+                        if (line == null) break;
+                        gather[count++] = ByteBuffer.wrap(line);
+                        bytes += line.length;
+                    }
+                    if (count == 0) {
+                        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+                        handler.writeState.set(IDLE);
+                        // A sender may have queued a line after the last poll but before the state was reset
+                        if (handler.outbound.isEmpty() || !handler.writeState.compareAndSet(IDLE, SCHEDULED)) return;
+                        continue;
+                    }
+
+                    netOut = connection.loop.borrowTlsBuffer();
+                    while (netOut.remaining() >= tlsPacketSize && gather[count - 1].hasRemaining()) {
+                        SSLEngineResult result = engine.wrap(gather, 0, count, netOut);
+                        if (result.getStatus() != SSLEngineResult.Status.OK) throw new SSLException("TLS wrap " + result.getStatus());
+                    }
+                    netOut.flip();
+                    int done = 0;
+                    while (done < count && !gather[done].hasRemaining()) {
+                        Metrics.written(gather[done].capacity());
+                        done++;
+                    }
+                    if (done < count) connection.unwritten = Arrays.copyOfRange(gather, done, count);
+                    Arrays.fill(gather, 0, count, null);
+                }
+            } catch (IOException e) {
+                Arrays.fill(gather, null);
+                connection.close();
+            }
+        }
+
+        // Sends the engine's handshake records; false while it waits for the client or for socket space.
+        // A whole flight is collected in netOut and written at once: one small write per record would
+        // leave the later ones waiting on Nagle and the client's delayed ACK.
+        private boolean handshake() throws IOException {
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            try {
+                                task.run();
+                            } catch (RuntimeException e) {
+                                throw new SSLException("TLS handshake task failed", e);
+                            }
+                        }
+                        break;
+                    case NEED_WRAP:
+                        if (netOut == null) {
+                            netOut = connection.loop.borrowTlsBuffer();
+                        } else {
+                            netOut.compact();
+                        }
+                        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                            if (!flush()) return false;
+                        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            flush();
+                            connection.close();
+                            return false;
+                        } else if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                            finished();
+                        }
+                        break;
+                    case NOT_HANDSHAKING:
+                        return flush();
+                    default:
+                        flush();
+                        return false; // NEED_UNWRAP: the client's turn
+                }
+            }
+        }
+
+        private void finished() {
+            if (handshaken) return; // the server's session ticket comes after the handshake proper
+            handshaken = true;
+            Metrics.tlsHandshake(System.nanoTime() - handshakeStart);
+        }
+
+        // Writes netOut; false if the socket took only part of it, with OP_WRITE set to finish later
+        private boolean flush() throws IOException {
+            if (netOut == null) return true;
+            while (netOut.hasRemaining() && connection.channel.write(netOut) > 0) {
+                Metrics.socketWrites.increment();
+            }
+            if (netOut.hasRemaining()) {
+                connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            connection.loop.releaseTlsBuffer(netOut);
+            netOut = null;
+            return true;
+        }
+
+        // Best effort, behind any pending ciphertext; for the replies NioConnection.writeNow sends
+        void writeNow(byte[] bytes) throws IOException {
+            if (netOut == null) {
+                netOut = connection.loop.borrowTlsBuffer();
+            } else {
+                netOut.compact();
+            }
+            engine.wrap(ByteBuffer.wrap(bytes), netOut);
+            netOut.flip();
+            flush();
+        }
+
+        // Sends close_notify if the socket takes it at once, and returns the buffers to the pool
+        void close() {
+            engine.closeOutbound();
+            try {
+                if (netOut == null) {
+                    netOut = connection.loop.borrowTlsBuffer();
+                    engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                }
+                connection.channel.write(netOut);
+            } catch (IOException e) {
+                // the connection is going away anyway
+            }
+            if (netOut != null) connection.loop.releaseTlsBuffer(netOut);
+            if (netIn != null) connection.loop.releaseTlsBuffer(netIn);
+            netOut = null;
+            netIn = null;
+        }
+    }
+
+    // Pairs the two ends of a relayed file transfer on --relay-port and pumps bytes between them.
+    // A peer opens a data connection and sends MAGIC, a role byte and the 16-byte token the server
+    // issued for the transfer. The sender parks a standby connection per stream and gets one byte
+    // back when a receiver is paired with it; from then on the relay just copies in both directions.
+    // Everything runs on one selector thread, and each pair holds two fixed direct buffers, so
+    // memory per transfer stays small however large the file is.
+    static class Relay implements Runnable {
+        static final int MAGIC = 0x4343524C; // "CCRL"
+        static final byte ROLE_SENDER = 1;
+        static final byte ROLE_RECEIVER = 2;
+        private static final int TOKEN_BYTES = 16;
+        private static final int HELLO_SIZE = 4 + 1 + TOKEN_BYTES;
+        private static final int DATA_BUFFER_SIZE = 64 * 1024;  // sender -> receiver
+        private static final int REQUEST_BUFFER_SIZE = 4 * 1024; // receiver -> sender (range requests only)
+        private static final int MAX_WAITING = 32;               // parked connections per token
+        private static final long SESSION_IDLE_MILLIS = 60_000;  // an unused token expires after this
+        private static final long SWEEP_MILLIS = 1000;
+
+        final int port;
+        final AtomicInteger activePairs = new AtomicInteger();
+        final AtomicLong pairsTotal = new AtomicLong();
+        final AtomicLong relayedBytes = new AtomicLong();
+
+        private final Selector selector;
+        private final ServerSocketChannel serverChannel;
+        private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+        private final SecureRandom random = new SecureRandom();
+        private final TokenBucket globalLimit;
+        private final long userBytesPerSecond;
+        private final Map<String, TokenBucket> userLimits = new HashMap<>(); // relay thread only
+        private final List<Pair> throttled = new ArrayList<>();              // relay thread only
+
+        Relay(int port, long bytesPerSecond, long userBytesPerSecond) throws IOException {
+            this.port = port;
+            this.globalLimit = new TokenBucket(bytesPerSecond);
+            this.userBytesPerSecond = userBytesPerSecond;
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        // Issues the token both peers present on the relay port; called from the accepting client's thread
+        String open(String senderName, String receiverName) {
+            byte[] bytes = new byte[TOKEN_BYTES];
+            random.nextBytes(bytes);
+            String token = toHex(bytes);
+            sessions.put(token, new Session(senderName, receiverName));
+            return token;
+        }
+
+        // One relayed transfer; a parallel transfer has one pair per stream
+        private static class Session {
+            final String senderName;
+            final String receiverName;
+            final ArrayDeque<Endpoint> waitingSenders = new ArrayDeque<>();
+            final ArrayDeque<Endpoint> waitingReceivers = new ArrayDeque<>();
+            int livePairs;
+            long idleSince = System.currentTimeMillis();
+
+            Session(String senderName, String receiverName) {
+                this.senderName = senderName;
+                this.receiverName = receiverName;
+            }
+        }
+
+        // A connection that has not been paired yet
+        private static class Endpoint {
+            final SocketChannel channel;
+            final ByteBuffer hello = ByteBuffer.allocate(HELLO_SIZE);
+            SelectionKey key;
+            Session session;
+            long since = System.currentTimeMillis();
+
+            Endpoint(SocketChannel channel) {
+                this.channel = channel;
+            }
+        }
+
+        // A sender connection spliced to a receiver connection
+        private static class Pair {
+            final Session session;
+            final SocketChannel sender;
+            final SocketChannel receiver;
+            SelectionKey senderKey;
+            SelectionKey receiverKey;
+            final ByteBuffer toReceiver = ByteBuffer.allocateDirect(DATA_BUFFER_SIZE);
+            final ByteBuffer toSender = ByteBuffer.allocateDirect(REQUEST_BUFFER_SIZE);
+            final TokenBucket senderLimit;
+            final TokenBucket receiverLimit;
+            final long pairedAt = System.nanoTime();
+            long resumeAt;     // nanoTime when a throttled pair may read from the sender again, 0 = not throttled
+            boolean draining;  // one side closed; flush what is buffered and then close the other
+            boolean closed;
+
+            Pair(Session session, SocketChannel sender, SocketChannel receiver, TokenBucket senderLimit, TokenBucket receiverLimit) {
+                this.session = session;
+                this.sender = sender;
+                this.receiver = receiver;
+                this.senderLimit = senderLimit;
+                this.receiverLimit = receiverLimit;
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (true) {
+                try {
+                    selector.select(nextWakeupMillis());
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.channel() == serverChannel) {
+                                accept();
+                            } else if (key.attachment() instanceof Endpoint) {
+                                onHello((Endpoint) key.attachment());
+                            } else {
+                                pump((Pair) key.attachment());
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            if (key.attachment() instanceof Pair) {
+                                close((Pair) key.attachment());
+                            } else if (key.attachment() instanceof Endpoint) {
+                                drop((Endpoint) key.attachment());
+                            }
+                        }
+                    }
+                    resumeThrottled();
+                    if (System.currentTimeMillis() - lastSweep >= SWEEP_MILLIS) {
+                        sweep();
+                        lastSweep = System.currentTimeMillis();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Relay error: " + e);
+                }
+            }
+        }
+
+        private long nextWakeupMillis() {
+            long wait = SWEEP_MILLIS;
+            long now = System.nanoTime();
+            for (Pair pair : throttled) {
+                wait = Math.min(wait, Math.max(1, (pair.resumeAt - now) / 1_000_000));
+            }
+            return wait;
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                Endpoint endpoint = new Endpoint(channel);
+                endpoint.key = channel.register(selector, SelectionKey.OP_READ, endpoint);
+            }
+        }
+
+        // Reads the hello, then parks the connection or pairs it with one waiting on the other side
+        private void onHello(Endpoint endpoint) throws IOException {
+            if (endpoint.session != null) {
+                // Parked: the peer should be silent until paired, so anything here means it went away
+                drop(endpoint);
+                return;
+            }
+            if (endpoint.channel.read(endpoint.hello) < 0) {
+                drop(endpoint);
+                return;
+            }
+            if (endpoint.hello.hasRemaining()) return;
+
+            endpoint.hello.flip();
+            int magic = endpoint.hello.getInt();
+            byte role = endpoint.hello.get();
+            byte[] token = new byte[TOKEN_BYTES];
+            endpoint.hello.get(token);
+            Session session = sessions.get(toHex(token));
+            if (magic != MAGIC || session == null || (role != ROLE_SENDER && role != ROLE_RECEIVER)) {
+                drop(endpoint);
+                return;
+            }
+
+            ArrayDeque<Endpoint> partners = (role == ROLE_SENDER) ? session.waitingReceivers : session.waitingSenders;
+            ArrayDeque<Endpoint> waiting = (role == ROLE_SENDER) ? session.waitingSenders : session.waitingReceivers;
+            Endpoint partner = partners.poll();
+            if (partner == null) {
+                if (waiting.size() >= MAX_WAITING) {
+                    drop(endpoint);
+                    return;
+                }
+                endpoint.session = session;
+                endpoint.since = System.currentTimeMillis();
+                waiting.add(endpoint);
+                return;
+            }
+            Endpoint sender = (role == ROLE_SENDER) ? endpoint : partner;
+            Endpoint receiver = (role == ROLE_SENDER) ? partner : endpoint;
+            pair(session, sender, receiver);
+        }
+
+        private void pair(Session session, Endpoint sender, Endpoint receiver) throws IOException {
+            Pair pair = new Pair(session, sender.channel, receiver.channel,
+                    userLimit(session.senderName), userLimit(session.receiverName));
+            pair.senderKey = sender.key;
+            pair.receiverKey = receiver.key;
+            sender.key.attach(pair);
+            receiver.key.attach(pair);
+            session.livePairs++;
+            activePairs.incrementAndGet();
+            pairsTotal.incrementAndGet();
+
+            // Tell the sender's standby connection it now has a receiver; the socket buffer is empty, so one byte fits
+            if (pair.sender.write(ByteBuffer.wrap(new byte[] {1})) != 1) {
+                close(pair);
+                return;
+            }
+            updateInterest(pair);
+        }
+
+        // A user's bucket lives as long as some pair holds it, so the map only has users with data moving
+        private TokenBucket userLimit(String username) {
+            if (userBytesPerSecond <= 0) return null;
+            TokenBucket limit = userLimits.computeIfAbsent(userKey(username), k -> new TokenBucket(userBytesPerSecond));
+            limit.holders++;
+            return limit;
+        }
+
+        private void releaseUserLimit(String username, TokenBucket limit) {
+            if (limit != null && --limit.holders == 0) userLimits.remove(userKey(username), limit);
+        }
+
+        // Moves whatever each side can take right now; sender -> receiver bytes are metered
+        private void pump(Pair pair) throws IOException {
+            if (pair.closed) return;
+            if (!pair.draining && pair.resumeAt == 0 && pair.toReceiver.hasRemaining()) {
+                int allowed = allowance(pair, pair.toReceiver.remaining());
+                if (allowed > 0) {
+                    int limit = pair.toReceiver.limit();
+                    pair.toReceiver.limit(pair.toReceiver.position() + allowed);
+                    int n = pair.sender.read(pair.toReceiver);
+                    pair.toReceiver.limit(limit);
+                    if (n < 0) {
+                        pair.draining = true;
+                    } else if (n > 0) {
+                        charge(pair, n);
+                    }
+                }
+            }
+            if (!pair.draining && pair.toSender.hasRemaining()) {
+                if (pair.receiver.read(pair.toSender) < 0) pair.draining = true;
+            }
+
+            relayedBytes.addAndGet(flush(pair.toReceiver, pair.receiver) + flush(pair.toSender, pair.sender));
+
+            if (pair.draining && pair.toReceiver.position() == 0 && pair.toSender.position() == 0) {
+                close(pair);
+                return;
+            }
+            updateInterest(pair);
+        }
+
+        // Bytes the sender may push now under the global and both users' caps; throttles the pair if none
+        private int allowance(Pair pair, int wanted) {
+            long allowed = Math.min(wanted, globalLimit.available());
+            if (pair.senderLimit != null) allowed = Math.min(allowed, pair.senderLimit.available());
+            if (pair.receiverLimit != null) allowed = Math.min(allowed, pair.receiverLimit.available());
+            if (allowed > 0) return (int) allowed;
+
+            long target = Math.min(wanted, REQUEST_BUFFER_SIZE);
+            long waitNanos = globalLimit.nanosUntil(target);
+            if (pair.senderLimit != null) waitNanos = Math.max(waitNanos, pair.senderLimit.nanosUntil(target));
+            if (pair.receiverLimit != null) waitNanos = Math.max(waitNanos, pair.receiverLimit.nanosUntil(target));
+            pair.resumeAt = System.nanoTime() + Math.max(1_000_000, waitNanos);
+            throttled.add(pair);
+            return 0;
+        }
+
+        private void charge(Pair pair, int n) {
+            globalLimit.take(n);
+            if (pair.senderLimit != null) pair.senderLimit.take(n);
+            if (pair.receiverLimit != null) pair.receiverLimit.take(n);
+        }
+
+        // buffer is in fill mode; writes what the channel accepts and keeps the rest
+        private static int flush(ByteBuffer buffer, SocketChannel channel) throws IOException {
+            if (buffer.position() == 0) return 0;
+            buffer.flip();
+            int n = channel.write(buffer);
+            buffer.compact();
+            return n;
+        }
+
+        // Read while there is room (and the sender is not throttled); write while something is buffered
+        private void updateInterest(Pair pair) {
+            int senderOps = 0;
+            int receiverOps = 0;
+            if (!pair.draining) {
+                if (pair.resumeAt == 0 && pair.toReceiver.hasRemaining()) senderOps |= SelectionKey.OP_READ;
+                if (pair.toSender.hasRemaining()) receiverOps |= SelectionKey.OP_READ;
+            }
+            if (pair.toReceiver.position() > 0) receiverOps |= SelectionKey.OP_WRITE;
+            if (pair.toSender.position() > 0) senderOps |= SelectionKey.OP_WRITE;
+            pair.senderKey.interestOps(senderOps);
+            pair.receiverKey.interestOps(receiverOps);
+        }
+
+        private void resumeThrottled() {
+            if (throttled.isEmpty()) return;
+            long now = System.nanoTime();
+            Iterator<Pair> it = throttled.iterator();
+            while (it.hasNext()) {
+                Pair pair = it.next();
+                if (pair.closed) {
+                    it.remove();
+                } else if (now >= pair.resumeAt) {
+                    it.remove();
+                    pair.resumeAt = 0;
+                    updateInterest(pair);
+                }
+            }
+        }
+
+        // Expires parked connections and tokens nobody used for SESSION_IDLE_MILLIS
+        private void sweep() {
+            long now = System.currentTimeMillis();
+            Iterator<Session> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                expire(session.waitingSenders, now);
+                expire(session.waitingReceivers, now);
+                if (session.livePairs == 0 && session.waitingSenders.isEmpty() && session.waitingReceivers.isEmpty()
+                        && now - session.idleSince > SESSION_IDLE_MILLIS) {
+                    it.remove();
+                }
+            }
+        }
+
+        private void expire(ArrayDeque<Endpoint> waiting, long now) {
+            while (!waiting.isEmpty() && now - waiting.peek().since > SESSION_IDLE_MILLIS) {
+                close(waiting.poll().channel);
+            }
+        }
+
+        private void drop(Endpoint endpoint) {
+            if (endpoint.session != null) {
+                endpoint.session.waitingSenders.remove(endpoint);
+                endpoint.session.waitingReceivers.remove(endpoint);
+                endpoint.session.idleSince = System.currentTimeMillis();
+            }
+            close(endpoint.channel);
+        }
+
+        private void close(Pair pair) {
+            if (pair.closed) return;
+            pair.closed = true;
+            close(pair.sender);
+            close(pair.receiver);
+            activePairs.decrementAndGet();
+            releaseUserLimit(pair.session.senderName, pair.senderLimit);
+            releaseUserLimit(pair.session.receiverName, pair.receiverLimit);
+            Metrics.relayPairMillis.record((System.nanoTime() - pair.pairedAt) / 1_000_000);
+            if (--pair.session.livePairs == 0) {
+                pair.session.idleSince = System.currentTimeMillis();
+            }
+        }
+
+        private static void close(SocketChannel channel) {
+            try {
+                channel.close(); // also cancels its key
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Non-blocking token bucket holding up to a tenth of a second of traffic; rate 0 means unlimited.
+    // Only used from the relay thread.
+    static class TokenBucket {
+        private final long bytesPerSecond;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        int holders; // relay pairs sharing a per-user bucket
+
+        TokenBucket(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(bytesPerSecond / 10.0, 16 * 1024);
+            this.tokens = capacity;
+        }
+
+        long available() {
+            if (bytesPerSecond <= 0) return Long.MAX_VALUE;
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+            lastRefill = now;
+            return (long) tokens;
+        }
+
+        void take(long n) {
+            if (bytesPerSecond > 0) tokens -= n;
+        }
+
+        long nanosUntil(long n) {
+            if (bytesPerSecond <= 0) return 0;
+            double missing = Math.min(n, capacity) - available();
+            return (missing <= 0) ? 0 : (long) (missing * 1e9 / bytesPerSecond);
+        }
+    }
+
+    // Releases delayed client writes (--write-delay). Every delay is the same length, so handlers queue up
+    // in due order and one thread serves all of them: it sleeps until the oldest is due, then hands each
+    // due handler to its writer or selector loop. A handler that reached --write-batch bytes meanwhile has
+    // already been written, and flushDelayed does nothing for it.
+    static final class Flusher {
+        private static final ConcurrentLinkedQueue<ClientHandler> due = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger size = new AtomicInteger();
+        private static long delayNanos;
+        private static Thread thread;
+
+        static void start(long delayMillis) {
+            delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            thread = new Thread(Flusher::run, "flusher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static void add(ClientHandler handler) {
+            handler.flushDue = System.nanoTime() + delayNanos;
+            due.add(handler);
+            if (size.getAndIncrement() == 0) LockSupport.unpark(thread);
+        }
+
+        private static void run() {
+            while (true) {
+                ClientHandler handler = due.peek();
+                if (handler == null) {
+                    // add() unparks us when the queue goes from empty to not empty
+                    if (size.get() == 0) LockSupport.park();
+                    continue;
+                }
+                long wait = handler.flushDue - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                due.poll();
+                size.decrementAndGet();
+                handler.flushDelayed();
+            }
+        }
+    }
+
+    // Per-user token buckets for the commands that cost the most: chat lines and /msg (each one a
+    // fan-out), /who and /sendfile. Buckets refill when a command arrives rather than on a timer, so
+    // an idle user costs nothing. Only touched by the thread handling that user's commands.
+    static final class CommandLimits {
+        static final int CHAT = 0;
+        static final int WHO = 1;
+        static final int SENDFILE = 2;
+        static final String[] NAMES = {"chat", "who", "sendfile"};
+
+        private final double[] tokens = new double[NAMES.length];
+        private final long[] refilled = new long[NAMES.length];
+        boolean throttled; // has had a command dropped at some point
+        boolean warned;    // has been told about the commands being dropped right now
+
+        CommandLimits() {
+            long now = System.nanoTime();
+            for (int kind = 0; kind < tokens.length; kind++) {
+                tokens[kind] = burst(commandRates[kind]);
+                refilled[kind] = now;
+            }
+        }
+
+        static boolean enabled() {
+            for (double rate : commandRates) {
+                if (rate > 0) return true;
+            }
+            return false;
+        }
+
+        // Which bucket a command draws from; -1 for commands that are never limited
+        static int kindOf(byte op) {
+            switch (op) {
+                case Protocol.CHAT:
+                case Protocol.MSG:
+                    return CHAT;
+                case Protocol.WHO:
+                    return WHO;
+                case Protocol.SENDFILE:
+                    return SENDFILE;
+                default:
+                    return -1;
+            }
+        }
+
+        boolean tryAcquire(int kind) {
+            double rate = commandRates[kind];
+            if (rate <= 0) return true;
+            long now = System.nanoTime();
+            tokens[kind] = Math.min(burst(rate), tokens[kind] + (now - refilled[kind]) * rate / 1e9);
+            refilled[kind] = now;
+            if (tokens[kind] < 1) return false;
+            tokens[kind] -= 1;
+            return true;
+        }
+
+        private static double burst(double rate) {
+            return Math.max(1, rate * RATE_BURST_SECONDS);
+        }
+    }
+
+    // Drives every connection's heartbeat (--ping-interval, --idle-timeout) from one thread, however many
+    // connections there are. The wheel is a ring of SLOTS queues that the thread steps through one per
+    // TICK_MILLIS; a handler waits in the slot of the tick it is due at, so scheduling is one queue add
+    // and a tick only visits the handlers due then (plus any due a whole turn of the ring or more later,
+    // which go straight back). A handler is in at most one slot: onHeartbeat says how many ticks until
+    // it wants the next look, and a closed handler simply is not put back.
+    static final class TimerWheel {
+        static final long TICK_MILLIS = 100;
+        private static final int SLOTS = 512; // a turn of the ring is 51.2 s
+        private static final ConcurrentLinkedQueue<ClientHandler>[] slots = newSlots();
+        static volatile long tick; // only the wheel thread advances it
+        static long pingTicks;     // 0 = no pings
+        static long idleTicks;     // 0 = never reaped
+        private static volatile boolean running;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static ConcurrentLinkedQueue<ClientHandler>[] newSlots() {
+            ConcurrentLinkedQueue<ClientHandler>[] slots = new ConcurrentLinkedQueue[SLOTS];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new ConcurrentLinkedQueue<>();
+            }
+            return slots;
+        }
+
+        static void start() {
+            pingTicks = pingInterval * 1000L / TICK_MILLIS;
+            idleTicks = idleTimeout * 1000L / TICK_MILLIS;
+            running = true;
+            Thread thread = new Thread(TimerWheel::run, "timer-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // A new connection, first looked at once the shorter of the two timeouts has passed
+        static void add(ClientHandler handler) {
+            if (!running) return;
+            long first = (pingTicks > 0 && idleTicks > 0) ? Math.min(pingTicks, idleTicks) : Math.max(pingTicks, idleTicks);
+            schedule(handler, first);
+        }
+
+        // Called from other threads too, which may read tick just before the wheel moves on and drains
+        // slot tick + 1; two ticks at least keeps a handler from landing in a slot already drained
+        private static void schedule(ClientHandler handler, long delayTicks) {
+            long due = tick + Math.max(2, delayTicks);
+            handler.timerDue = due;
+            slots[(int) (due & (SLOTS - 1))].add(handler);
+        }
+
+        private static void run() {
+            List<ClientHandler> due = new ArrayList<>();
+            long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+            long next = System.nanoTime();
+            while (true) {
+                next += tickNanos;
+                long wait;
+                while ((wait = next - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                long now = tick + 1;
+                tick = now;
+                ConcurrentLinkedQueue<ClientHandler> slot = slots[(int) (now & (SLOTS - 1))];
+                ClientHandler handler;
+                while ((handler = slot.poll()) != null) {
+                    due.add(handler);
+                }
+                for (ClientHandler waiting : due) {
+                    if (waiting.timerDue > now) {
+                        slot.add(waiting); // a later turn of the ring
+                        continue;
+                    }
+                    try {
+                        long delay = waiting.onHeartbeat(now);
+                        if (delay > 0) schedule(waiting, delay);
+                    } catch (RuntimeException e) {
+                        Log.warn("Heartbeat failed for " + waiting.username + ": " + e);
+                    }
+                }
+                due.clear();
+            }
+        }
+    }
+
+    // Server nodes sharing one chat. Each node listens on --node-port and dials every --peers address,
+    // so two nodes are joined by one connection each way, and a node only writes on the ones it dialled.
+    // A dialled connection starts with three NODE_HELLOs. The accepting node's carries a random challenge;
+    // the dialling node's answers it with the HMAC-SHA256 under the cluster secret and adds a challenge of
+    // its own, which the accepting node answers in turn. The secret never crosses the link, an old answer is
+    // no good for a new connection, and either side closes a link that answers wrong before trusting a
+    // frame from it. After that the dialling node sends the names
+    // of its logged-in users, then their logins and logouts, every broadcast and room line, and anything
+    // addressed to one of the other node's users (NODE_TO followed by the frame for that user). Frames
+    // are the binary client protocol's. Each peer has a bounded queue drained by its own thread, which
+    // writes everything waiting and flushes once, so a busy node sends few large packets. A frame is
+    // encoded once however many peers it goes to. A peer that is down or falls behind loses frames;
+    // when it comes back it is sent the full user list again.
+    static final class Cluster {
+        private static final int QUEUE_CAPACITY = 64 * 1024;
+        private static final int BATCH = 1024;
+        private static final long RETRY_MILLIS = 1000;
+        private static final long HELLO_TIMEOUT_MILLIS = 5000;
+        private static final int SOCKET_BUFFER = 64 * 1024;
+        private static final byte[] RECONNECT = new byte[0]; // queued to make a peer's writer redial
+
+        final String nodeId;
+        // Changes every time the node starts, so peers can tell a restart from a reconnect
+        private final String incarnation = Long.toString(System.currentTimeMillis());
+        private final String bindAddress;
+        private final int port;
+        private final byte[] secret;
+        private final SecureRandom random = new SecureRandom();
+        private final List<Peer> peers = new ArrayList<>();
+        private final ConcurrentHashMap<String, Peer> peersByNode = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+        private final AtomicLong remoteVersion = new AtomicLong();
+        private volatile UserList userList = new UserList(-1, -1, "");
+        final LongAdder framesSent = new LongAdder();
+        final LongAdder batchesSent = new LongAdder();
+        final LongAdder framesDropped = new LongAdder();
+        final LongAdder framesReceived = new LongAdder();
+
+        Cluster(String nodeId, String bindAddress, int port, byte[] secret, List<InetSocketAddress> addresses) {
+            this.nodeId = nodeId;
+            this.bindAddress = bindAddress;
+            this.port = port;
+            this.secret = secret;
+            for (InetSocketAddress address : addresses) {
+                peers.add(new Peer(address));
+            }
+        }
+
+        void start() throws IOException {
+            ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        new Thread(() -> readLink(socket), "cluster-in").start();
+                    } catch (IOException e) {
+                        Log.warn("Cluster accept failed: " + e.getMessage());
+                    }
+                }
+            }, "cluster-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            for (Peer peer : peers) {
+                Thread writer = new Thread(peer, "cluster-out-" + peer.name());
+                writer.setDaemon(true);
+                writer.start();
+            }
+        }
+
+        RemoteUser findUser(String key) {
+            return remoteUsers.get(key);
+        }
+
+        int connectedPeers() {
+            return peersByNode.size();
+        }
+
+        // Logins and logouts are announced under this's lock, which a peer also holds while queueing the
+        // full list, so a peer never hears of a logout before the login it undoes
+        synchronized void userJoined(String username) {
+            byte[] frame = Protocol.encode(new Command(Protocol.NODE_JOINED, username, "", null, null));
+            for (Peer peer : peers) {
+                peer.offer(frame);
+            }
+        }
+
+        synchronized void userLeft(String username) {
+            byte[] frame = Protocol.encode(new Command(Protocol.NODE_LEFT, username, "", null, null));
+            for (Peer peer : peers) {
+                peer.offer(frame);
+            }
+        }
+
+        // NODE_BROADCAST or NODE_CHAT to every peer; room is a room key, or empty for everyone
+        void forward(byte op, String room, String line) {
+            if (peers.isEmpty()) return;
+            byte[] frame = Protocol.encode(new Command(op, null, room, line, null));
+            for (Peer peer : peers) {
+                peer.offer(frame);
+            }
+        }
+
+        // Local users in join order, then everyone elsewhere by name; rebuilt only after a login or logout
+        String userList(Membership local) {
+            UserList cached = userList;
+            long remote = remoteVersion.get();
+            if (cached.localVersion == local.version && cached.remoteVersion == remote) return cached.text;
+            List<String> names = new ArrayList<>();
+            for (RemoteUser user : remoteUsers.values()) {
+                names.add(user.username);
+            }
+            names.sort(String.CASE_INSENSITIVE_ORDER);
+            StringBuilder sb = new StringBuilder("[Online users: ");
+            for (int i = 0; i < local.members.length; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(local.members[i].username);
+            }
+            for (String name : names) {
+                if (sb.length() > "[Online users: ".length()) sb.append(", ");
+                sb.append(name);
+            }
+            String text = sb.append(']').toString();
+            userList = new UserList(local.version, remote, text);
+            return text;
+        }
+
+        private static final class UserList {
+            final long localVersion;
+            final long remoteVersion;
+            final String text;
+
+            UserList(long localVersion, long remoteVersion, String text) {
+                this.localVersion = localVersion;
+                this.remoteVersion = remoteVersion;
+                this.text = text;
+            }
+        }
+
+        // A user logged in to another node. Commands for them go to that node, which hands them over.
+        final class RemoteUser implements Recipient {
+            final String username;
+            final String node;
+            final Object link; // the connection that announced them; they go when it does
+
+            RemoteUser(String username, String node, Object link) {
+                this.username = username;
+                this.node = node;
+                this.link = link;
+            }
+
+            public String username() {
+                return username;
+            }
+
+            public void send(Command command) {
+                Peer peer = peersByNode.get(node);
+                if (peer == null) {
+                    framesDropped.increment();
+                    return;
+                }
+                byte[] to = Protocol.encode(new Command(Protocol.NODE_TO, username, "", null, null));
+                byte[] inner = Protocol.encode(command);
+                byte[] frames = Arrays.copyOf(to, to.length + inner.length);
+                System.arraycopy(inner, 0, frames, to.length, inner.length);
+                peer.offer(frames);
+            }
+
+            public void sendMessage(String message) {
+                send(new Command(Protocol.MESSAGE, null, "", message, null));
+            }
+        }
+
+        // Reads one dialled-in connection until it closes
+        private void readLink(Socket socket) {
+            Object link = new Object();
+            String node = null;
+            try (Socket s = socket) {
+                s.setReceiveBufferSize(SOCKET_BUFFER);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), SOCKET_BUFFER));
+                byte[] scratch = new byte[256];
+                String challenge = newChallenge();
+                OutputStream out = s.getOutputStream();
+                out.write(Protocol.encode(new Command(Protocol.NODE_HELLO, null, incarnation, nodeId, challenge)));
+                out.flush();
+                s.setSoTimeout((int) HELLO_TIMEOUT_MILLIS);
+                Command hello = readFrame(in, scratch);
+                if (hello == null || hello.op != Protocol.NODE_HELLO || hello.text == null) return;
+                // extra is "<answer> <challenge>"
+                String[] reply = (hello.extra != null) ? hello.extra.split(" ", 2) : new String[0];
+                if (reply.length < 2 || !answers(reply[0], challenge, hello.text, hello.tag)) {
+                    Log.warn("Cluster link from " + s.getRemoteSocketAddress() + " refused: wrong secret");
+                    return;
+                }
+                out.write(Protocol.encode(new Command(Protocol.NODE_HELLO, null, incarnation, nodeId,
+                        answer(reply[1], nodeId, incarnation))));
+                out.flush();
+                s.setSoTimeout(0);
+                node = hello.text;
+                // A restarted node has forgotten our users, and our old connection to it is dead
+                Peer peer = peersByNode.get(node);
+                if (peer != null && !hello.tag.equals(peer.remoteIncarnation)) peer.reconnect();
+                Log.info("Cluster node " + node + " connected from " + s.getRemoteSocketAddress());
+
+                String deliverTo = null; // set by NODE_TO for the frame after it
+                Command command;
+                while ((command = readFrame(in, scratch)) != null) {
+                    framesReceived.increment();
+                    if (deliverTo != null) {
+                        ClientHandler recipient = findClientByName(deliverTo);
+                        if (recipient != null) recipient.send(command);
+                        deliverTo = null;
+                        continue;
+                    }
+                    switch (command.op) {
+                        case Protocol.NODE_JOINED:
+                            remoteUsers.put(userKey(command.user), new RemoteUser(command.user, node, link));
+                            remoteVersion.incrementAndGet();
+                            break;
+                        case Protocol.NODE_LEFT: {
+                            RemoteUser user = remoteUsers.get(userKey(command.user));
+                            if (user != null && user.link == link && remoteUsers.remove(userKey(command.user), user)) {
+                                remoteVersion.incrementAndGet();
+                            }
+                            break;
+                        }
+                        case Protocol.NODE_BROADCAST:
+                        case Protocol.NODE_CHAT: {
+                            String line = (command.text == null) ? "" : command.text;
+                            if (command.tag.isEmpty()) {
+                                fanOut(membership().members, line, null);
+                                break;
+                            }
+                            Room room = rooms.get(command.tag);
+                            if (room != null) fanOut(room.members(), line, null);
+                            if (command.op == Protocol.NODE_CHAT) History.record(command.tag, line);
+                            break;
+                        }
+                        case Protocol.NODE_TO:
+                            deliverTo = command.user;
+                            break;
+                        default:
+                            throw new IOException("Unexpected opcode " + command.op);
+                    }
+                }
+            } catch (IOException e) {
+                // the other node went away
+            } finally {
+                if (node != null) {
+                    remoteUsers.values().removeIf(user -> user.link == link);
+                    remoteVersion.incrementAndGet();
+                    Log.warn("Cluster node " + node + " disconnected");
+                }
+            }
+        }
+
+        private String newChallenge() {
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            return toHex(nonce);
+        }
+
+        private boolean answers(String given, String challenge, String node, String nodeIncarnation) {
+            return MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8),
+                    answer(challenge, node, nodeIncarnation).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Binds the answer to the answering node's name and incarnation as well as the challenge
+        private String answer(String challenge, String node, String nodeIncarnation) {
+            try {
+                javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
+                mac.init(new javax.crypto.spec.SecretKeySpec(secret, "HmacSHA256"));
+                return toHex(mac.doFinal((challenge + "\n" + node + "\n" + nodeIncarnation).getBytes(StandardCharsets.UTF_8)));
+            } catch (java.security.GeneralSecurityException e) {
+                throw new IllegalStateException("HmacSHA256 is not available", e);
+            }
+        }
+
+        private static Command readFrame(DataInputStream in, byte[] scratch) throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 1 || length > Protocol.MAX_FRAME) throw new IOException("Bad frame length " + length);
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            return Protocol.decode(ByteBuffer.wrap(frame), length, scratch);
+        }
+
+        // The connection this node dials to one --peers address, redialled whenever it drops
+        private final class Peer implements Runnable {
+            final InetSocketAddress address;
+            private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            private volatile boolean connected;
+            volatile String remoteIncarnation; // of the node at the other end, from its hello
+
+            Peer(InetSocketAddress address) {
+                this.address = address;
+            }
+
+            String name() {
+                return address.getHostString() + ":" + address.getPort();
+            }
+
+            // Never blocks; frames for a peer that is down are dropped, it gets the full user list on reconnect
+            void offer(byte[] frame) {
+                if (!connected || !queue.offer(frame)) framesDropped.increment();
+            }
+
+            // Drops the connection and dials again, which resends the user list
+            void reconnect() {
+                queue.offer(RECONNECT);
+            }
+
+            public void run() {
+                boolean warned = false;
+                while (true) {
+                    String node = null;
+                    try (Socket socket = new Socket()) {
+                        socket.setSendBufferSize(SOCKET_BUFFER);
+                        socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()));
+                        socket.setTcpNoDelay(true); // writes are already batched
+                        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER);
+                        socket.setSoTimeout((int) HELLO_TIMEOUT_MILLIS);
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        Command hello = readFrame(in, new byte[256]);
+                        if (hello == null || hello.op != Protocol.NODE_HELLO || hello.text == null || hello.extra == null) {
+                            throw new IOException("no hello");
+                        }
+                        String challenge = newChallenge();
+                        out.write(Protocol.encode(new Command(Protocol.NODE_HELLO, null, incarnation, nodeId,
+                                answer(hello.extra, nodeId, incarnation) + " " + challenge)));
+                        out.flush();
+                        Command proof = readFrame(in, new byte[256]);
+                        if (proof == null || proof.op != Protocol.NODE_HELLO || proof.extra == null
+                                || !answers(proof.extra, challenge, hello.text, hello.tag)) {
+                            throw new IOException("refused, or it does not share our secret");
+                        }
+                        socket.setSoTimeout(0);
+                        node = hello.text;
+                        remoteIncarnation = hello.tag;
+                        synchronized (Cluster.this) {
+                            queue.clear();
+                            connected = true;
+                            for (ClientHandler user : membership().members) {
+                                queue.offer(Protocol.encode(new Command(Protocol.NODE_JOINED, user.username, "", null, null)));
+                            }
+                        }
+                        peersByNode.put(node, this);
+                        Log.info("Connected to cluster node " + node + " at " + name());
+                        warned = false;
+                        writeBatches(out);
+                    } catch (IOException e) {
+                        if (!warned) Log.warn("Cluster link to " + name() + " down: " + e.getMessage());
+                        warned = true;
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        connected = false;
+                        if (node != null) peersByNode.remove(node, this);
+                    }
+                    try {
+                        Thread.sleep(RETRY_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+
+            private void writeBatches(OutputStream out) throws IOException, InterruptedException {
+                List<byte[]> batch = new ArrayList<>(BATCH);
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH - 1);
+                    for (byte[] frame : batch) {
+                        if (frame == RECONNECT) throw new IOException("node restarted");
+                        out.write(frame);
+                    }
+                    out.flush();
+                    framesSent.add(batch.size());
+                    batchesSent.increment();
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    // Recent chat lines per room. Each room key has a ring of the last --history lines that outlives the
+    // room itself, so a joiner is sent the conversation so far without touching disk. Only the
+    // --history-rooms most recently used rings are kept, so rooms that come and go (or only exist on
+    // other nodes) cannot grow the heap for good; /history still finds their lines in the log. With --history-dir
+    // every line also goes to the MessageLog, which survives restarts and serves /history beyond the ring.
+    // Lines are numbered in one sequence. A line takes its number under its ring's lock, so each ring is in
+    // numbering order and rooms do not wait on each other; only with a log does every line go through one
+    // lock, so log order and numbering agree too.
+    static final class History {
+        private static final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+        private static final Object lock = new Object();
+        private static final AtomicLong sequence = new AtomicLong();
+        static MessageLog log;        // null unless --history-dir is set
+
+        static final class Entry {
+            final long seq;
+            final String line;
+
+            Entry(long seq, String line) {
+                this.seq = seq;
+                this.line = line;
+            }
+        }
+
+        static void record(String roomKey, String line) {
+            if (historySize == 0 && log == null) return;
+            Ring ring = (historySize == 0) ? null : ring(roomKey);
+            if (log == null) {
+                ring.add(line);
+                return;
+            }
+            synchronized (lock) {
+                Entry entry = (ring != null) ? ring.add(line) : new Entry(sequence.incrementAndGet(), line);
+                log.append(entry.seq, roomKey, line);
+            }
+        }
+
+        // Called by MessageLog.open for every line on disk, oldest first
+        static void replayed(long seq, String roomKey, String line) {
+            sequence.accumulateAndGet(seq, Math::max);
+            if (historySize > 0) ring(roomKey).add(new Entry(seq, line));
+        }
+
+        private static Ring ring(String roomKey) {
+            Ring ring = rings.get(roomKey);
+            if (ring != null) return ring;
+            ring = rings.computeIfAbsent(roomKey, k -> new Ring(historySize));
+            if (rings.size() > historyRooms) evict();
+            return ring;
+        }
+
+        // Drops the least recently used rings, an eighth below the cap so this runs once per many new rooms
+        private static synchronized void evict() {
+            int excess = rings.size() - (historyRooms - historyRooms / 8);
+            if (excess <= 0) return;
+            List<Map.Entry<String, Ring>> oldest = new ArrayList<>(rings.entrySet());
+            oldest.sort(Comparator.comparingLong(entry -> entry.getValue().used));
+            for (int i = 0; i < excess && i < oldest.size(); i++) {
+                rings.remove(oldest.get(i).getKey(), oldest.get(i).getValue());
+            }
+        }
+
+        static long lastSequence() {
+            return sequence.get();
+        }
+
+        // Everything in the room's ring, oldest first
+        static List<Entry> recent(String roomKey) {
+            return page(roomKey, Long.MAX_VALUE, historySize, false);
+        }
+
+        // Up to count lines numbered below before, oldest first
+        static List<Entry> page(String roomKey, long before, int count) {
+            return page(roomKey, before, count, true);
+        }
+
+        private static List<Entry> page(String roomKey, long before, int count, boolean useLog) {
+            Ring ring = rings.get(roomKey);
+            if (ring != null) ring.used = sequence.get();
+            List<Entry> page = (ring == null) ? new ArrayList<>() : ring.before(before, count);
+            if (useLog && log != null && page.size() < count) {
+                // The ring ran out; older lines come from disk
+                long oldest = page.isEmpty() ? before : page.get(0).seq;
+                List<Entry> older = log.read(roomKey, oldest, count - page.size());
+                older.addAll(page);
+                page = older;
+            }
+            return page;
+        }
+
+        private static final class Ring {
+            private final Entry[] entries;
+            private int next;
+            private int size;
+            volatile long used = sequence.get(); // the sequence when it was last written or read, for eviction
+
+            Ring(int capacity) {
+                entries = new Entry[capacity];
+            }
+
+            // Numbers the line here, so no line can overtake another on its way into the ring
+            synchronized Entry add(String line) {
+                Entry entry = new Entry(sequence.incrementAndGet(), line);
+                add(entry);
+                return entry;
+            }
+
+            synchronized void add(Entry entry) {
+                used = Math.max(used, entry.seq);
+                entries[next] = entry;
+                next = (next + 1) % entries.length;
+                size = Math.min(size + 1, entries.length);
+            }
+
+            // The newest count entries numbered below before, oldest first
+            synchronized List<Entry> before(long before, int count) {
+                ArrayDeque<Entry> found = new ArrayDeque<>();
+                for (int i = 1; i <= size && found.size() < count; i++) {
+                    Entry entry = entries[(next - i + entries.length) % entries.length];
+                    if (entry.seq < before) found.addFirst(entry);
+                }
+                return new ArrayList<>(found);
+            }
+        }
+    }
+
+    // Append-only chat log in a directory of segment files, each named after the first sequence number
+    // it holds and rolled at SEGMENT_BYTES. A record is
+    //   int body length | int CRC32 of body | body = long seq | short room length | room | line
+    // in UTF-8. Callers only queue encoded records; one writer thread takes everything queued, writes it
+    // with one gathering write and fsyncs once (group commit), so a burst of chat costs one fsync rather
+    // than one per line. Only fsynced bytes are visible to readers. Replay at startup and /history reads
+    // go through read-only memory maps, and a torn record at the end of the newest segment is cut off.
+    static final class MessageLog {
+        private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+        private static final int HEADER = 8;
+        private static final int MAX_QUEUED = 64 * 1024;
+        private static final String SUFFIX = ".log";
+
+        final LongAdder appended = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        long replayed;
+
+        private final File dir;
+        private volatile Segment[] segments; // oldest first; replaced, never changed, under commitLock
+        private FileChannel active;          // the newest segment, open for appending; guarded by commitLock
+        private boolean torn;                // active has bytes past its size it could not cut; guarded by commitLock
+        private final Object commitLock = new Object();
+        private List<ByteBuffer> queued = new ArrayList<>(); // guarded by this
+        private long queuedFirstSeq;                         // guarded by this
+
+        private static final class Segment {
+            final File file;
+            final long firstSeq;
+            volatile long size; // bytes fsynced so far
+            MappedByteBuffer map; // cached once the segment is sealed; guarded by this
+
+            Segment(File file, long firstSeq, long size) {
+                this.file = file;
+                this.firstSeq = firstSeq;
+                this.size = size;
+            }
+        }
+
+        private MessageLog(File dir) {
+            this.dir = dir;
+        }
+
+        // Replays every segment into History, then starts the writer thread
+        static MessageLog open(File dir) throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+            MessageLog log = new MessageLog(dir);
+            File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX) && name.length() == 20 + SUFFIX.length());
+            List<Segment> found = new ArrayList<>();
+            for (File file : (files == null) ? new File[0] : files) {
+                try {
+                    long firstSeq = Long.parseLong(file.getName().substring(0, 20));
+                    found.add(new Segment(file, firstSeq, file.length()));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+            found.sort(Comparator.comparingLong(segment -> segment.firstSeq));
+            for (int i = 0; i < found.size(); i++) {
+                Segment segment = found.get(i);
+                long valid = log.replay(segment);
+                if (valid < segment.size) {
+                    Log.warn("Message log " + segment.file.getName() + ": ignoring " + (segment.size - valid)
+                            + " bytes after the last complete record");
+                    if (i == found.size() - 1) {
+                        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE)) {
+                            channel.truncate(valid);
+                        }
+                    }
+                    segment.size = valid;
+                }
+            }
+            log.segments = found.toArray(new Segment[0]);
+            if (!found.isEmpty()) {
+                log.active = FileChannel.open(found.get(found.size() - 1).file.toPath(), StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            Thread writer = new Thread(log::writeBatches, "message-log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(log::flush, "message-log-flush"));
+            return log;
+        }
+
+        // Feeds the segment's records to History; returns the length of its valid prefix
+        private long replay(Segment segment) throws IOException {
+            ByteBuffer map = map(segment, segment.size, false);
+            CRC32 crc = new CRC32();
+            while (map.remaining() >= HEADER) {
+                int start = map.position();
+                int length = map.getInt();
+                int checksum = map.getInt();
+                if (length < 10 || length > map.remaining()) return start;
+                ByteBuffer body = map.slice();
+                body.limit(length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) return start;
+                long seq = body.getLong();
+                int roomLength = body.getShort();
+                if (roomLength < 0 || roomLength > body.remaining()) return start;
+                String room = getString(body, roomLength);
+                History.replayed(seq, room, getString(body, body.remaining()));
+                replayed++;
+                map.position(start + HEADER + length);
+            }
+            return map.position();
+        }
+
+        void append(long seq, String roomKey, String line) {
+            byte[] room = roomKey.getBytes(StandardCharsets.UTF_8);
+            byte[] text = line.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(HEADER + 10 + room.length + text.length);
+            record.position(HEADER);
+            record.putLong(seq).putShort((short) room.length).put(room).put(text);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), HEADER, record.capacity() - HEADER);
+            record.putInt(0, record.capacity() - HEADER).putInt(4, (int) crc.getValue());
+            record.flip();
+            synchronized (this) {
+                if (queued.size() >= MAX_QUEUED) {
+                    dropped.increment();
+                    return;
+                }
+                if (queued.isEmpty()) {
+                    queuedFirstSeq = seq;
+                    notify();
+                }
+                queued.add(record);
+            }
+            appended.increment();
+        }
+
+        private void writeBatches() {
+            while (true) {
+                List<ByteBuffer> batch;
+                long firstSeq;
+                synchronized (this) {
+                    while (queued.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    batch = queued;
+                    firstSeq = queuedFirstSeq;
+                    queued = new ArrayList<>();
+                }
+                try {
+                    commit(batch, firstSeq);
+                } catch (IOException e) {
+                    dropped.add(batch.size());
+                    Log.warn("Message log write failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // Writes out whatever is still queued; used on shutdown
+        private void flush() {
+            List<ByteBuffer> rest;
+            long firstSeq;
+            synchronized (this) {
+                rest = queued;
+                firstSeq = queuedFirstSeq;
+                queued = new ArrayList<>();
+            }
+            if (rest.isEmpty()) return;
+            try {
+                commit(rest, firstSeq);
+            } catch (IOException e) {
+                // shutting down anyway
+            }
+        }
+
+        // Appenders only take this's lock, so they keep queueing while a commit waits on the disk
+        private void commit(List<ByteBuffer> batch, long firstSeq) throws IOException {
+            synchronized (commitLock) {
+                commitLocked(batch, firstSeq);
+            }
+        }
+
+        private void commitLocked(List<ByteBuffer> batch, long firstSeq) throws IOException {
+            long start = System.nanoTime();
+            Segment[] current = segments;
+            Segment last = (current.length == 0) ? null : current[current.length - 1];
+            if (last == null || last.size >= SEGMENT_BYTES || torn) {
+                last = roll(firstSeq);
+                torn = false;
+            }
+            ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+            long written = 0;
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+            }
+            try {
+                while (written < total) {
+                    written += active.write(buffers);
+                }
+                active.force(false);
+            } catch (IOException e) {
+                // Whatever got written is not counted in size, so cut it off before the next batch lands
+                // after it; failing that, the next batch starts a new segment
+                try {
+                    active.truncate(last.size);
+                } catch (IOException truncateFailed) {
+                    e.addSuppressed(truncateFailed);
+                    torn = true;
+                }
+                throw e;
+            }
+            last.size += total;
+            Metrics.historyCommitNanos.record(System.nanoTime() - start);
+            Metrics.historyBatchRecords.record(batch.size());
+        }
+
+        // Seals the active segment and starts a new one named after its first record
+        private Segment roll(long firstSeq) throws IOException {
+            if (active != null) active.close();
+            File file = new File(dir, String.format("%020d%s", firstSeq, SUFFIX));
+            active = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            Segment segment = new Segment(file, firstSeq, 0);
+            Segment[] current = segments;
+            Segment[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = segment;
+            segments = grown;
+            return segment;
+        }
+
+        // Up to count of the room's lines numbered below before, oldest first, scanning segments newest first
+        List<History.Entry> read(String roomKey, long before, int count) {
+            byte[] room = roomKey.getBytes(StandardCharsets.UTF_8);
+            ArrayDeque<History.Entry> found = new ArrayDeque<>();
+            Segment[] current = segments;
+            try {
+                for (int i = current.length - 1; i >= 0 && found.size() < count; i--) {
+                    Segment segment = current[i];
+                    if (segment.firstSeq >= before) continue;
+                    // Matches from this segment, newest count kept, all older than anything already found
+                    ArrayDeque<History.Entry> matches = new ArrayDeque<>();
+                    ByteBuffer map = map(segment, segment.size, i < current.length - 1);
+                    while (map.remaining() >= HEADER) {
+                        int start = map.position();
+                        int length = map.getInt();
+                        map.getInt(); // checked at replay
+                        long seq = map.getLong();
+                        if (seq >= before) break;
+                        int roomLength = map.getShort();
+                        if (roomLength == room.length && sameBytes(map, room)) {
+                            map.position(map.position() + roomLength);
+                            matches.addLast(new History.Entry(seq, getString(map, start + HEADER + length - map.position())));
+                            if (matches.size() > count - found.size()) matches.removeFirst();
+                        }
+                        map.position(start + HEADER + length);
+                    }
+                    while (!matches.isEmpty()) {
+                        found.addFirst(matches.removeLast());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Message log read failed: " + e.getMessage());
+            }
+            return new ArrayList<>(found);
+        }
+
+        // A read-only view of the first size bytes; sealed segments are mapped once and kept
+        private static ByteBuffer map(Segment segment, long size, boolean sealed) throws IOException {
+            synchronized (segment) {
+                if (segment.map != null) return segment.map.duplicate();
+                MappedByteBuffer map;
+                try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                    map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                if (sealed) segment.map = map;
+                return map.duplicate();
+            }
+        }
+
+        private static boolean sameBytes(ByteBuffer buffer, byte[] bytes) {
+            int at = buffer.position();
+            for (int i = 0; i < bytes.length; i++) {
+                if (buffer.get(at + i) != bytes[i]) return false;
+            }
+            return true;
+        }
+
+        private static String getString(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Console output for the whole server. Callers only enqueue; one daemon thread writes whatever has
+    // piled up as a single batch and flushes once, so a slow terminal never holds up a client thread
+    // or a selector loop. When the queue is full, lines are dropped and counted rather than waited for.
+    // Per-message lines (chat, /who) are DEBUG; joins, leaves and file events are INFO.
+    static final class Log {
+        static final int DEBUG = 0;
+        static final int INFO = 1;
+        static final int WARN = 2;
+        static final int OFF = 3;
+        static final String[] LEVELS = {"debug", "info", "warn", "off"};
+
+        private static final int QUEUE_CAPACITY = 64 * 1024;
+        private static final int BATCH = 1024;
+
+        static final LongAdder dropped = new LongAdder();
+        private static volatile int level = DEBUG;
+        private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private static final PrintStream console =
+                new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024), false);
+
+        static {
+            Thread writer = new Thread(Log::writeBatches, "log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+        }
+
+        static void setLevel(int newLevel) {
+            level = newLevel;
+        }
+
+        // Check first when building the line costs something
+        static boolean enabled(int lineLevel) {
+            return lineLevel >= level;
+        }
+
+        static void debug(String line) {
+            log(DEBUG, line);
+        }
+
+        static void info(String line) {
+            log(INFO, line);
+        }
+
+        static void warn(String line) {
+            log(WARN, line);
+        }
+
+        private static void log(int lineLevel, String line) {
+            if (lineLevel < level) return;
+            if (!queue.offer(line)) dropped.increment();
+        }
+
+        private static void writeBatches() {
+            List<String> batch = new ArrayList<>(BATCH);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch, BATCH - 1);
+                synchronized (console) {
+                    for (String line : batch) {
+                        console.println(line);
+                    }
+                    console.flush();
+                }
+                batch.clear();
+            }
+        }
+
+        // Writes out whatever is still queued; used on shutdown
+        private static void flush() {
+            List<String> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            synchronized (console) {
+                for (String line : rest) {
+                    console.println(line);
+                }
+                console.flush();
+            }
+        }
+    }
+
+    // Fails a read once more than MAX_LINE bytes arrive without a newline, so a text client cannot make
+    // BufferedReader.readLine build an endless line
+    static final class LineLimitInputStream extends FilterInputStream {
+        private int run; // bytes since the last newline
+
+        LineLimitInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count((byte) b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            for (int i = off; i < off + n; i++) {
+                count(b[i]);
+            }
+            return n;
+        }
+
+        private void count(byte b) throws LineTooLongException {
+            if (b == '\n') {
+                run = 0;
+            } else if (++run > Protocol.MAX_LINE) {
+                throw new LineTooLongException();
+            }
+        }
+    }
+
+    static final class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LineTooLongException() {
+            super("Line longer than " + Protocol.MAX_LINE + " bytes");
+        }
+    }
+
+    // Adds every byte written through it to a counter
+    static final class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder count;
+
+        CountingOutputStream(OutputStream out, LongAdder count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.add(len);
+        }
+    }
+
+    // Counters and latency histograms for the hot paths, served in Prometheus text format on
+    // --metrics-port (loopback only). Recording never allocates: counters are LongAdders and
+    // histograms are fixed arrays of atomic counts. Gauges such as queue depth are read at scrape time.
+    static final class Metrics {
+        static final LongAdder messagesOut = new LongAdder();   // lines or frames written to clients
+        static final LongAdder bytesOut = new LongAdder();
+        static final LongAdder socketWrites = new LongAdder(); // write system calls (nio) or flushes (thread, virtual)
+        static final LongAdder deflateIn = new LongAdder();    // bytes sent to clients with a compressed stream, before deflate
+        static final LongAdder deflateOut = new LongAdder();   // and what they took on the wire
+        static final LongAdder broadcastRecipients = new LongAdder();
+        static final Histogram broadcastNanos = new Histogram();
+        static final LongAdder fileBytes = new LongAdder();     // offered size of completed transfers
+        static final Histogram fileMillis = new Histogram();    // /acceptfile to /filecomplete
+        static final Histogram relayPairMillis = new Histogram();
+        static final Histogram historyCommitNanos = new Histogram();
+        static final Histogram historyBatchRecords = new Histogram();
+        static final LongAdder tlsHandshakes = new LongAdder();
+        static final Histogram tlsHandshakeNanos = new Histogram(); // accept to handshake finished
+        static final LongAdder reaped = new LongAdder();            // closed by --idle-timeout
+        static final LongAdder longLines = new LongAdder();         // closed for a text line over MAX_LINE
+        static final LongAdder pingsSent = new LongAdder();
+        static final LongAdder throttledConnections = new LongAdder(); // users who went over a --*-rate at least once
+        static final LongAdder[] throttledCommands = new LongAdder[CommandLimits.NAMES.length];
+        private static final LongAdder[] commands = new LongAdder[0x20];
+        private static final String[] COMMAND_NAMES = new String[0x20];
+
+        // Transfers between /sendfile and /filecomplete, keyed by sender, receiver and id
+        private static final int MAX_PENDING_TRANSFERS = 4096;
+        private static final long PENDING_TRANSFER_MILLIS = 24 * 60 * 60 * 1000L;
+        private static final ConcurrentHashMap<String, long[]> pendingTransfers = new ConcurrentHashMap<>();
+
+        static {
+            COMMAND_NAMES[Protocol.LOGIN] = "login";
+            COMMAND_NAMES[Protocol.CHAT] = "chat";
+            COMMAND_NAMES[Protocol.WHO] = "who";
+            COMMAND_NAMES[Protocol.QUIT] = "quit";
+            COMMAND_NAMES[Protocol.SENDFILE] = "sendfile";
+            COMMAND_NAMES[Protocol.ACCEPTFILE] = "acceptfile";
+            COMMAND_NAMES[Protocol.REJECTFILE] = "rejectfile";
+            COMMAND_NAMES[Protocol.FILEPORT] = "fileport";
+            COMMAND_NAMES[Protocol.FILECOMPLETE] = "filecomplete";
+            COMMAND_NAMES[Protocol.JOIN] = "join";
+            COMMAND_NAMES[Protocol.LEAVE] = "leave";
+            COMMAND_NAMES[Protocol.ROOMS] = "rooms";
+            COMMAND_NAMES[Protocol.MSG] = "msg";
+            COMMAND_NAMES[Protocol.HISTORY] = "history";
+            COMMAND_NAMES[Protocol.PONG] = "pong";
+            for (int i = 0; i < commands.length; i++) {
+                if (COMMAND_NAMES[i] != null) commands[i] = new LongAdder();
+            }
+            for (int i = 0; i < throttledCommands.length; i++) {
+                throttledCommands[i] = new LongAdder();
+            }
+        }
+
+        static void commandIn(byte op) {
+            LongAdder counter = (op >= 0 && op < commands.length) ? commands[op] : null;
+            if (counter != null) counter.increment();
+        }
+
+        static void written(int bytes) {
+            messagesOut.increment();
+            bytesOut.add(bytes);
+        }
+
+        static void tlsHandshake(long nanos) {
+            tlsHandshakes.increment();
+            tlsHandshakeNanos.record(nanos);
+        }
+
+        // "120 KB" as /sendfile carries it; the id comes from the "#id=N" tag, 0 when untagged
+        static void fileOffered(String sender, String receiver, String tag, String sizeKB) {
+            long bytes = 0;
+            int space = sizeKB.indexOf(' ');
+            try {
+                bytes = Long.parseLong((space < 0) ? sizeKB : sizeKB.substring(0, space)) * 1024;
+            } catch (NumberFormatException e) {
+                // "unknown size"
+            }
+            if (pendingTransfers.size() >= MAX_PENDING_TRANSFERS) expirePendingTransfers();
+            if (pendingTransfers.size() < MAX_PENDING_TRANSFERS) {
+                pendingTransfers.put(transferKey(sender, receiver, tag), new long[] {bytes, 0, System.currentTimeMillis()});
+            }
+        }
+
+        static void fileAccepted(String sender, String receiver, String tag) {
+            long[] transfer = pendingTransfers.get(transferKey(sender, receiver, tag));
+            if (transfer != null) transfer[1] = System.nanoTime();
+        }
+
+        static void fileRejected(String sender, String receiver, String tag) {
+            pendingTransfers.remove(transferKey(sender, receiver, tag));
+        }
+
+        // Clients name the sender in the /filecomplete tag ("#id=N:from=alice"); older ones cannot be matched
+        static void fileCompleted(String receiver, String tag) {
+            String sender = tagValue(tag, "from");
+            if (sender == null) return;
+            long[] transfer = pendingTransfers.remove(transferKey(sender, receiver, tag));
+            if (transfer == null) return;
+            fileBytes.add(transfer[0]);
+            if (transfer[1] != 0) fileMillis.record((System.nanoTime() - transfer[1]) / 1_000_000);
+        }
+
+        private static void expirePendingTransfers() {
+            long cutoff = System.currentTimeMillis() - PENDING_TRANSFER_MILLIS;
+            pendingTransfers.values().removeIf(transfer -> transfer[2] < cutoff);
+        }
+
+        private static String transferKey(String sender, String receiver, String tag) {
+            String id = tagValue(tag, "id");
+            return userKey(sender) + ">" + userKey(receiver) + "#" + (id == null ? "0" : id);
+        }
+
+        private static String tagValue(String tag, String name) {
+            if (tag.isEmpty()) return null;
+            for (String entry : tag.substring(1).split(":")) {
+                if (entry.startsWith(name + "=")) return entry.substring(name.length() + 1);
+            }
+            return null;
+        }
+
+        static void start(int port) throws IOException {
+            com.sun.net.httpserver.HttpServer server =
+                    com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "metrics");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+        }
+
+        static String render() {
+            StringBuilder sb = new StringBuilder(4096);
+            gauge(sb, "chat_connections", "Open client connections", connections.get());
+            counter(sb, "chat_connections_accepted_total", "Client connections accepted", counter.get());
+            gauge(sb, "chat_users", "Logged-in users", users.size());
+            gauge(sb, "chat_rooms", "Rooms with at least one member", rooms.size());
+
+            sb.append("# HELP chat_commands_total Commands received from clients\n# TYPE chat_commands_total counter\n");
+            for (int i = 0; i < commands.length; i++) {
+                if (commands[i] == null) continue;
+                sb.append("chat_commands_total{command=\"").append(COMMAND_NAMES[i]).append("\"} ").append(commands[i].sum()).append('\n');
+            }
+            counter(sb, "chat_messages_out_total", "Lines or frames written to clients", messagesOut.sum());
+            counter(sb, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+            counter(sb, "chat_socket_writes_total", "Socket writes (nio) or flushes (thread, virtual) to clients", socketWrites.sum());
+            counter(sb, "chat_deflate_in_bytes_total", "Bytes sent to clients with a compressed stream, before deflate", deflateIn.sum());
+            counter(sb, "chat_deflate_out_bytes_total", "Bytes sent to clients with a compressed stream, after deflate", deflateOut.sum());
+            counter(sb, "chat_broadcast_recipients_total", "Messages queued by broadcasts", broadcastRecipients.sum());
+            broadcastNanos.render(sb, "chat_broadcast_duration_nanoseconds", "Time to queue one broadcast for every recipient");
+
+            int queued = 0;
+            int maxQueue = 0;
+            for (ClientHandler client : membership().members) {
+                int depth = client.outbound.size();
+                queued += depth;
+                maxQueue = Math.max(maxQueue, depth);
+            }
+            gauge(sb, "chat_outbound_queued", "Messages waiting in client outbound queues", queued);
+            gauge(sb, "chat_outbound_queue_max_depth", "Deepest client outbound queue", maxQueue);
+            counter(sb, "chat_dropped_messages_total", "Messages dropped by the slow-consumer policy", droppedMessages.get());
+            counter(sb, "chat_slow_consumer_disconnects_total", "Clients disconnected for not reading", slowConsumerDisconnects.get());
+            counter(sb, "chat_reaped_connections_total", "Connections closed for sending nothing for --idle-timeout", reaped.sum());
+            counter(sb, "chat_long_lines_total", "Connections closed for a text line longer than the limit", longLines.sum());
+            counter(sb, "chat_pings_sent_total", "Pings sent to quiet connections", pingsSent.sum());
+            counter(sb, "chat_throttled_connections_total", "Users who had commands dropped by a rate limit", throttledConnections.sum());
+            sb.append("# HELP chat_throttled_commands_total Commands dropped by a rate limit\n# TYPE chat_throttled_commands_total counter\n");
+            for (int i = 0; i < throttledCommands.length; i++) {
+                sb.append("chat_throttled_commands_total{command=\"").append(CommandLimits.NAMES[i]).append("\"} ")
+                        .append(throttledCommands[i].sum()).append('\n');
+            }
+
+            counter(sb, "chat_file_transfer_bytes_total", "Offered size of completed file transfers", fileBytes.sum());
+            fileMillis.render(sb, "chat_file_transfer_duration_milliseconds", "Time from /acceptfile to /filecomplete");
+            if (relay != null) {
+                gauge(sb, "chat_relay_pairs", "Relayed data connections in progress", relay.activePairs.get());
+                counter(sb, "chat_relay_pairs_total", "Relayed data connections", relay.pairsTotal.get());
+                counter(sb, "chat_relay_bytes_total", "Bytes relayed between peers", relay.relayedBytes.get());
+                relayPairMillis.render(sb, "chat_relay_pair_duration_milliseconds", "Lifetime of a relayed data connection");
+            }
+            if (tlsContext != null) {
+                counter(sb, "chat_tls_handshakes_total", "TLS handshakes completed with clients", tlsHandshakes.sum());
+                tlsHandshakeNanos.render(sb, "chat_tls_handshake_duration_nanoseconds", "Time from accept to a finished TLS handshake");
+            }
+            if (History.log != null) {
+                counter(sb, "chat_history_records_total", "Chat lines appended to the message log", History.log.appended.sum());
+                counter(sb, "chat_history_dropped_total", "Chat lines not logged because the write queue was full",
+                        History.log.dropped.sum());
+                historyCommitNanos.render(sb, "chat_history_commit_duration_nanoseconds", "Time to write and fsync one batch");
+                historyBatchRecords.render(sb, "chat_history_commit_records", "Chat lines per fsync");
+            }
+            if (cluster != null) {
+                gauge(sb, "chat_cluster_peers", "Other nodes this node is connected to", cluster.connectedPeers());
+                gauge(sb, "chat_cluster_remote_users", "Users logged in to other nodes", cluster.remoteUsers.size());
+                counter(sb, "chat_cluster_frames_sent_total", "Frames sent to other nodes", cluster.framesSent.sum());
+                counter(sb, "chat_cluster_batches_sent_total", "Flushes of frames to other nodes", cluster.batchesSent.sum());
+                counter(sb, "chat_cluster_frames_dropped_total", "Frames for a node that was down or not keeping up",
+                        cluster.framesDropped.sum());
+                counter(sb, "chat_cluster_frames_received_total", "Frames received from other nodes", cluster.framesReceived.sum());
+            }
+            counter(sb, "chat_log_dropped_total", "Console lines dropped because the log queue was full", Log.dropped.sum());
+            return sb.toString();
+        }
+
+        private static void counter(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void gauge(StringBuilder sb, String name, String help, long value) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ').append(value).append('\n');
+        }
+    }
+
+    // HDR-style histogram of non-negative longs: 16 linear buckets per power of two, so a recorded value
+    // is known to within about 6% in a fixed 8 KB. Safe to record from any thread without locking.
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int EXPORTED_POWERS = 40; // Prometheus buckets at 0, 1, 3, 7 ... 2^39 - 1
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+        }
+
+        // The upper bound of the bucket holding the given fraction of recorded values, 0 when empty
+        long percentile(double fraction) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long count : snapshot) total += count;
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return highestIn(i);
+            }
+            return highestIn(snapshot.length - 1);
+        }
+
+        void render(StringBuilder sb, String name, String help) {
+            long[] snapshot = snapshot();
+            sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            int next = 0;
+            for (int power = 0; power < EXPORTED_POWERS; power++) {
+                // Every value below 2^power sits in a bucket below index(2^power)
+                int end = index(1L << power);
+                while (next < end) cumulative += snapshot[next++];
+                sb.append(name).append("_bucket{le=\"").append((1L << power) - 1).append("\"} ").append(cumulative).append('\n');
+            }
+            while (next < snapshot.length) cumulative += snapshot[next++];
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum()).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) snapshot[i] = counts.get(i);
+            return snapshot;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        private static long highestIn(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+            int sub = index & (SUB_BUCKETS - 1);
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    public static String getUserList() {
+        return (cluster == null) ? membership().userList() : cluster.userList(membership());
+    }
+}
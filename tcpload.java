@@ -0,0 +1,353 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Opens many chat connections against a ChatServer. By default they stay idle, so the server's
+// [Stats] lines can be compared across --mode=thread, --mode=virtual and --mode=nio. With --rate,
+// the first --senders connections send timestamped chat lines and every other connection times
+// the broadcast it receives, giving end-to-end delivery latency percentiles. Every connection answers
+// the server's heartbeat (/ping) with /pong, so --idle-timeout does not close them.
+class LoadGenerator {
+    private static int open;
+    private static int failed;
+    private static int closedByServer;
+    private static long bytesReceived;
+
+    // Latency mode (set from the command line)
+    private static int rate = 0;        // chat lines per second across all senders, 0 = idle connections only
+    private static int senderCount = 10;
+    private static int durationSeconds = 30;
+
+    private static final String PING = "] ping "; // how a relayed "ping <seq> <nanoTime>" line looks to receivers
+    private static final long REPORT_NANOS = 5_000_000_000L;
+    private static final long SETTLE_MILLIS = 2000; // lets the join broadcasts drain before timing starts
+
+    private static long sent;
+    private static long delivered;
+    private static final LatencyHistogram latencies = new LatencyHistogram();
+    private static LatencyHistogram interval = new LatencyHistogram();
+
+    public static void main(String[] args) throws IOException {
+        int port = 12345; // default port
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                if (!parseOption(arg)) {
+                    printUsage();
+                    return;
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() < 2 || positional.size() > 4) {
+            printUsage();
+            return;
+        }
+        String host = positional.get(0);
+        int count = Integer.parseInt(positional.get(1));
+        if (positional.size() >= 3) {
+            try {
+                port = Integer.parseInt(positional.get(2));
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid port number. Using default port 12345.");
+            }
+        }
+        String prefix = (positional.size() == 4) ? positional.get(3) : "load";
+
+        InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+        Selector selector = Selector.open();
+        // Join/leave broadcasts keep arriving; drain them so the server never blocks on us
+        ByteBuffer drain = ByteBuffer.allocateDirect(64 * 1024);
+        List<SocketChannel> channels = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(serverAddress);
+                channel.write(ByteBuffer.wrap((prefix + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new LineReader(channel));
+                channels.add(channel);
+                open++;
+            } catch (IOException e) {
+                if (failed++ == 0) {
+                    System.out.println("Connection " + i + " failed: " + e.getMessage());
+                }
+            }
+            if ((i + 1) % 1000 == 0) {
+                drain(selector, drain, 0);
+                report(start);
+            }
+        }
+        report(start);
+
+        if (rate > 0) {
+            measureLatency(selector, drain, channels.subList(0, Math.min(senderCount, channels.size())));
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            return;
+        }
+
+        // Hold the connections until killed
+        long lastReport = System.nanoTime();
+        while (true) {
+            drain(selector, drain, 1000);
+            if (System.nanoTime() - lastReport > REPORT_NANOS) {
+                report(start);
+                lastReport = System.nanoTime();
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: java tcpload.java <hostname> <connections> [port] [username_prefix]");
+        System.out.println("                         [--rate=lines/s] [--senders=N] [--duration=seconds]");
+    }
+
+    // Options are --name=value; returns false for anything unknown or malformed
+    private static boolean parseOption(String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) return false;
+        String name = arg.substring(2, eq);
+        String value = arg.substring(eq + 1);
+        try {
+            switch (name) {
+                case "rate":
+                    rate = Integer.parseInt(value);
+                    return rate >= 0;
+                case "senders":
+                    senderCount = Integer.parseInt(value);
+                    return senderCount > 0;
+                case "duration":
+                    durationSeconds = Integer.parseInt(value);
+                    return durationSeconds > 0;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Senders take turns sending "ping <seq> <nanoTime>" at the configured rate. Everything runs on
+    // this one thread, so the send and receive timestamps come from the same clock.
+    private static void measureLatency(Selector selector, ByteBuffer buffer, List<SocketChannel> senders) throws IOException {
+        long settleUntil = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (System.currentTimeMillis() < settleUntil) {
+            drain(selector, buffer, 100);
+        }
+        System.out.println("[Latency] " + senders.size() + " senders, " + rate + " lines/s for " + durationSeconds + " s");
+
+        long intervalNanos = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long nextSend = start;
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            while (nextSend <= now) {
+                SocketChannel sender = senders.get((int) (sent % senders.size()));
+                if (sender.isOpen()) {
+                    writeFully(sender, ("ping " + sent + " " + System.nanoTime() + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                sent++;
+                nextSend += intervalNanos;
+            }
+            drain(selector, buffer, Math.max(1, (nextSend - System.nanoTime()) / 1_000_000));
+            if (System.nanoTime() - lastReport > REPORT_NANOS) {
+                reportLatency("interval", interval, (System.nanoTime() - lastReport) / 1e9);
+                interval = new LatencyHistogram();
+                lastReport = System.nanoTime();
+            }
+        }
+
+        // Collect what is still in flight
+        long straggleUntil = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (System.currentTimeMillis() < straggleUntil) {
+            drain(selector, buffer, 100);
+        }
+        long expected = sent * Math.max(0, open - 1);
+        System.out.println("[Latency] sent=" + sent + " delivered=" + delivered + " expected=" + expected);
+        reportLatency("total", latencies, (System.nanoTime() - start) / 1e9);
+    }
+
+    private static void writeFully(SocketChannel channel, byte[] line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void drain(Selector selector, ByteBuffer buffer, long timeoutMillis) throws IOException {
+        int ready = (timeoutMillis > 0) ? selector.select(timeoutMillis) : selector.selectNow();
+        if (ready == 0) return;
+
+        long now = System.nanoTime();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            SocketChannel channel = (SocketChannel) key.channel();
+            int n;
+            try {
+                buffer.clear();
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                key.cancel();
+                channel.close();
+                open--;
+                closedByServer++;
+            } else {
+                bytesReceived += n;
+                buffer.flip();
+                ((LineReader) key.attachment()).read(buffer, now);
+            }
+        }
+    }
+
+    private static void report(long start) {
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("[Load] open=" + open + " failed=" + failed + " closedByServer=" + closedByServer
+                + " receivedKB=" + (bytesReceived / 1024) + " elapsedMs=" + elapsedMs);
+    }
+
+    private static void reportLatency(String label, LatencyHistogram histogram, double seconds) {
+        System.out.printf("[Latency] %s deliveries=%d (%.0f/s) p50=%dus p99=%dus p999=%dus max=%dus%n", label,
+                histogram.count(), histogram.count() / seconds, histogram.percentile(0.50), histogram.percentile(0.99),
+                histogram.percentile(0.999), histogram.max());
+    }
+
+    // Splits one connection's bytes into lines, answers heartbeats and times the pings among them,
+    // without decoding them to Strings, so the generator keeps up with the server's fan-out
+    private static class LineReader {
+        private static final byte[] MARKER = PING.getBytes(StandardCharsets.UTF_8);
+        private static final byte[] HEARTBEAT = "/ping".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] PONG = "/pong\n".getBytes(StandardCharsets.UTF_8);
+
+        private final SocketChannel channel;
+        private byte[] line = new byte[256];
+        private int length;
+
+        LineReader(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read(ByteBuffer buffer, long receivedAt) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    onLine(receivedAt);
+                    length = 0;
+                } else {
+                    if (length == line.length) line = java.util.Arrays.copyOf(line, length * 2);
+                    line[length++] = b;
+                }
+            }
+        }
+
+        // "[load3] ping <seq> <nanoTime>"
+        private void onLine(long receivedAt) {
+            if (isHeartbeat()) {
+                try {
+                    writeFully(channel, PONG);
+                } catch (IOException e) {
+                    // the next read sees the connection go
+                }
+                return;
+            }
+            if (rate == 0 || !containsMarker()) return;
+            long sentAt = 0;
+            int i = length;
+            if (i > 0 && line[i - 1] == '\r') i--;
+            int end = i;
+            while (i > 0 && line[i - 1] >= '0' && line[i - 1] <= '9') i--;
+            if (i == end || i == 0 || line[i - 1] != ' ') return; // someone else's line that mentions "] ping "
+            for (; i < end; i++) {
+                sentAt = sentAt * 10 + (line[i] - '0');
+            }
+            long micros = (receivedAt - sentAt) / 1000;
+            latencies.record(micros);
+            interval.record(micros);
+            delivered++;
+        }
+
+        private boolean isHeartbeat() {
+            int end = (length > 0 && line[length - 1] == '\r') ? length - 1 : length;
+            return end == HEARTBEAT.length && java.util.Arrays.equals(line, 0, end, HEARTBEAT, 0, end);
+        }
+
+        private boolean containsMarker() {
+            outer:
+            for (int start = 0; start + MARKER.length <= length; start++) {
+                for (int j = 0; j < MARKER.length; j++) {
+                    if (line[start + j] != MARKER[j]) continue outer;
+                }
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Log-linear histogram of microsecond values: 16 buckets per power of two, so any value is
+    // reported within about 6%, in a fixed 8 KB whatever the range
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts[index(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        // The smallest bucket bound that at least fraction of the recorded values fall under
+        long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, highestIn(i));
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        private static long highestIn(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = (index >>> SUB_BITS) + SUB_BITS - 1;
+            int sub = index & (SUB_BUCKETS - 1);
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}